@@ -0,0 +1,111 @@
+package org.rowland.jinix.derbytranslator;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In memory snapshot of the names and types of the tables of the APP schema, so that name space calls do
+ * not query SYS.SYSTABLES. The snapshot is reloaded when it is older than TTL or was invalidated because
+ * a statement that changes the catalog was run.
+ */
+class CatalogCache {
+
+    static final long TTL = 5 * 1000; // ms
+
+    private static final String TABLES_SQL = "select TABLENAME, TABLETYPE from SYS.SYSTABLES where TABLETYPE in ('T','A','V') and SCHEMAID=? order by TABLENAME";
+
+    static class TableInfo {
+        final String name;
+        final char type; // 'T' table, 'A' synonym, 'V' view
+
+        private TableInfo(String name, char type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private DerbyConnectionPool pool;
+    private String schemaId;
+
+    private Map<String, TableInfo> tables = Collections.emptyMap();
+    private String[] tableNames = new String[0];
+    private long loaded = 0;
+
+    CatalogCache(DerbyConnectionPool pool, String schemaId) {
+        this.pool = pool;
+        this.schemaId = schemaId;
+    }
+
+    /**
+     * @return the table or null if there is no table with the name
+     */
+    TableInfo getTable(String tableName) throws SQLException {
+        return getTables().get(tableName);
+    }
+
+    /**
+     * @return the table names in order. The caller must not modify the array.
+     */
+    synchronized String[] getTableNames() throws SQLException {
+        getTables();
+        return tableNames;
+    }
+
+    /**
+     * Drop the snapshot so that the next call reloads it
+     */
+    synchronized void invalidate() {
+        loaded = 0;
+    }
+
+    /**
+     * Test if sql is DDL that may create, drop or rename tables
+     */
+    static boolean changesCatalog(String sql) {
+        String statement = sql.trim();
+        return startsWithKeyword(statement, "CREATE") || startsWithKeyword(statement, "DROP") ||
+                startsWithKeyword(statement, "ALTER") || startsWithKeyword(statement, "RENAME");
+    }
+
+    private static boolean startsWithKeyword(String statement, String keyword) {
+        return statement.regionMatches(true, 0, keyword, 0, keyword.length()) &&
+                (statement.length() == keyword.length() ||
+                        !Character.isLetterOrDigit(statement.charAt(keyword.length())));
+    }
+
+    private synchronized Map<String, TableInfo> getTables() throws SQLException {
+        if (System.currentTimeMillis() - loaded > TTL) {
+            load();
+        }
+        return tables;
+    }
+
+    private void load() throws SQLException {
+        Map<String, TableInfo> newTables = new TreeMap<>();
+
+        DerbyConnectionPool.PooledConnection conn = pool.borrow();
+        try {
+            PreparedStatement ps = conn.prepareStatement(TABLES_SQL);
+            ps.setString(1, schemaId);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                String name = rs.getString(1);
+                newTables.put(name, new TableInfo(name, rs.getString(2).charAt(0)));
+            }
+            rs.close();
+        } catch (SQLException e) {
+            conn.invalidate();
+            throw e;
+        } finally {
+            pool.release(conn);
+        }
+
+        tables = newTables;
+        tableNames = newTables.keySet().toArray(new String[newTables.size()]);
+        loaded = System.currentTimeMillis();
+    }
+}
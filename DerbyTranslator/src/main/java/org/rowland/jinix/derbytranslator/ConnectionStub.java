@@ -8,10 +8,28 @@ import java.rmi.RemoteException;
 import java.sql.*;
 import java.sql.Date;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class ConnectionStub implements Connection {
 
+    /** rows fetched per round trip when the fetch size is not set */
+    static final int DEFAULT_FETCH_SIZE = 100;
+
+    private static final ExecutorService prefetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ResultSetPrefetch");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     private RemoteConnection rc;
     private boolean closed;
     private int objCounter;
@@ -31,7 +49,14 @@ public class ConnectionStub implements Connection {
 
     @Override
     public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return null;
+        try {
+            int statementHandle = rc.prepareStatement(sql);
+            PreparedStatementStub statement = new PreparedStatementStub(objCounter++, statementHandle);
+            statementCache.add(statement);
+            return statement;
+        } catch (RemoteException e) {
+            throw new SQLException("Internal error", e);
+        }
     }
 
     @Override
@@ -316,6 +341,7 @@ public class ConnectionStub implements Connection {
 
         private Integer id;
         private Set<ResultSetStub> resultSetCache = new HashSet();
+        private int fetchSize = 0;
 
         private StatementStub(int id) {
             this.id = Integer.valueOf(id);
@@ -335,7 +361,7 @@ public class ConnectionStub implements Connection {
         public ResultSet executeQuery(String sql) throws SQLException {
             try {
                 int resultSetHandle = rc.executeQuery(sql);
-                return new ResultSetStub(resultSetHandle);
+                return new ResultSetStub(resultSetHandle, fetchSize);
             } catch (RemoteException e) {
                 throw new SQLException("Internal error", e);
             }
@@ -438,12 +464,15 @@ public class ConnectionStub implements Connection {
 
         @Override
         public void setFetchSize(int rows) throws SQLException {
-
+            if (rows < 0) {
+                throw new SQLException("Invalid fetch size: "+rows);
+            }
+            fetchSize = rows;
         }
 
         @Override
         public int getFetchSize() throws SQLException {
-            return 0;
+            return fetchSize;
         }
 
         @Override
@@ -557,6 +586,338 @@ public class ConnectionStub implements Connection {
         }
     }
 
+    /**
+     * A statement compiled once on the server. Parameter values are collected here and sent with each
+     * execution.
+     */
+    public class PreparedStatementStub extends StatementStub implements PreparedStatement {
+
+        private int statementHandle;
+        private List<Object> parameters = new ArrayList<>();
+        private boolean closed = false;
+
+        private PreparedStatementStub(int id, int statementHandle) {
+            super(id);
+            this.statementHandle = statementHandle;
+        }
+
+        private void setParameter(int parameterIndex, Object x) throws SQLException {
+            if (parameterIndex < 1) {
+                throw new SQLException("Invalid parameter index: "+parameterIndex);
+            }
+            while (parameters.size() < parameterIndex) {
+                parameters.add(null);
+            }
+            parameters.set(parameterIndex-1, x);
+        }
+
+        @Override
+        public ResultSet executeQuery() throws SQLException {
+            try {
+                int resultSetHandle = rc.executePreparedQuery(statementHandle, new ArrayList<>(parameters));
+                return new ResultSetStub(resultSetHandle, getFetchSize());
+            } catch (RemoteException e) {
+                throw new SQLException("Internal error", e);
+            }
+        }
+
+        @Override
+        public ResultSet executeQuery(String sql) throws SQLException {
+            throw new SQLException("executeQuery(String) not allowed on a PreparedStatement");
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                rc.closePreparedStatement(statementHandle);
+            } catch (RemoteException e) {
+                throw new SQLException("Internal error", e);
+            }
+        }
+
+        @Override
+        public boolean isClosed() throws SQLException {
+            return closed;
+        }
+
+        @Override
+        public int executeUpdate() throws SQLException {
+            return 0;
+        }
+
+        @Override
+        public void setNull(int parameterIndex, int sqlType) throws SQLException {
+            setParameter(parameterIndex, null);
+        }
+
+        @Override
+        public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setByte(int parameterIndex, byte x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setShort(int parameterIndex, short x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setInt(int parameterIndex, int x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setLong(int parameterIndex, long x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setFloat(int parameterIndex, float x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setDouble(int parameterIndex, double x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setString(int parameterIndex, String x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setDate(int parameterIndex, Date x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setTime(int parameterIndex, Time x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Stream parameters not supported");
+        }
+
+        @Override
+        public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Stream parameters not supported");
+        }
+
+        @Override
+        public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Stream parameters not supported");
+        }
+
+        @Override
+        public void clearParameters() throws SQLException {
+            parameters.clear();
+        }
+
+        @Override
+        public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+            setObject(parameterIndex, x);
+        }
+
+        @Override
+        public void setObject(int parameterIndex, Object x) throws SQLException {
+            if (x != null && !(x instanceof java.io.Serializable)) {
+                throw new SQLFeatureNotSupportedException("Parameter type not supported: "+x.getClass().getName());
+            }
+            setParameter(parameterIndex, x);
+        }
+
+        @Override
+        public boolean execute() throws SQLException {
+            return false;
+        }
+
+        @Override
+        public void addBatch() throws SQLException {
+
+        }
+
+        @Override
+        public void setCharacterStream(int parameterIndex, Reader reader, int length) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Stream parameters not supported");
+        }
+
+        @Override
+        public void setRef(int parameterIndex, Ref x) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Ref parameters not supported");
+        }
+
+        @Override
+        public void setBlob(int parameterIndex, Blob x) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Blob parameters not supported");
+        }
+
+        @Override
+        public void setClob(int parameterIndex, Clob x) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Clob parameters not supported");
+        }
+
+        @Override
+        public void setArray(int parameterIndex, Array x) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Array parameters not supported");
+        }
+
+        @Override
+        public ResultSetMetaData getMetaData() throws SQLException {
+            return null;
+        }
+
+        @Override
+        public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Calendar parameters not supported");
+        }
+
+        @Override
+        public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Calendar parameters not supported");
+        }
+
+        @Override
+        public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Calendar parameters not supported");
+        }
+
+        @Override
+        public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+            setParameter(parameterIndex, null);
+        }
+
+        @Override
+        public void setURL(int parameterIndex, URL x) throws SQLException {
+            throw new SQLFeatureNotSupportedException("URL parameters not supported");
+        }
+
+        @Override
+        public ParameterMetaData getParameterMetaData() throws SQLException {
+            return null;
+        }
+
+        @Override
+        public void setRowId(int parameterIndex, RowId x) throws SQLException {
+            throw new SQLFeatureNotSupportedException("RowId parameters not supported");
+        }
+
+        @Override
+        public void setNString(int parameterIndex, String value) throws SQLException {
+            setParameter(parameterIndex, value);
+        }
+
+        @Override
+        public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Stream parameters not supported");
+        }
+
+        @Override
+        public void setNClob(int parameterIndex, NClob value) throws SQLException {
+            throw new SQLFeatureNotSupportedException("NClob parameters not supported");
+        }
+
+        @Override
+        public void setClob(int parameterIndex, Reader reader, long length) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Clob parameters not supported");
+        }
+
+        @Override
+        public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Blob parameters not supported");
+        }
+
+        @Override
+        public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException {
+            throw new SQLFeatureNotSupportedException("NClob parameters not supported");
+        }
+
+        @Override
+        public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException {
+            throw new SQLFeatureNotSupportedException("SQLXML parameters not supported");
+        }
+
+        @Override
+        public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
+            setObject(parameterIndex, x);
+        }
+
+        @Override
+        public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Stream parameters not supported");
+        }
+
+        @Override
+        public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Stream parameters not supported");
+        }
+
+        @Override
+        public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Stream parameters not supported");
+        }
+
+        @Override
+        public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Stream parameters not supported");
+        }
+
+        @Override
+        public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Stream parameters not supported");
+        }
+
+        @Override
+        public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Stream parameters not supported");
+        }
+
+        @Override
+        public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Stream parameters not supported");
+        }
+
+        @Override
+        public void setClob(int parameterIndex, Reader reader) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Clob parameters not supported");
+        }
+
+        @Override
+        public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
+            throw new SQLFeatureNotSupportedException("Blob parameters not supported");
+        }
+
+        @Override
+        public void setNClob(int parameterIndex, Reader reader) throws SQLException {
+            throw new SQLFeatureNotSupportedException("NClob parameters not supported");
+        }
+    }
+
     public class ResultSetStub implements ResultSet {
 
         private Integer handle;
@@ -566,11 +927,19 @@ public class ConnectionStub implements Connection {
         private ResultSetMetaDataDTO resultSetMetaData;
         private boolean lastGetWasNull;
 
-        private ResultSetStub(int resultSetHandle) {
+        /* rows are fetched in batches, the following batch is prefetched in the background */
+        private int fetchSize;
+        private LinkedList<List<Object>> rows = new LinkedList<>();
+        private Future<List<List<Object>>> nextBatch = null;
+        private int nextBatchSize; // rows requested by nextBatch, the fetch size may change meanwhile
+        private boolean lastBatch = false;
+
+        private ResultSetStub(int resultSetHandle, int fetchSize) {
             handle = resultSetHandle;
             beforeFirst = true;
             afterLast = false;
             resultSetMetaData = null;
+            this.fetchSize = fetchSize;
         }
 
         @Override
@@ -585,24 +954,75 @@ public class ConnectionStub implements Connection {
 
         @Override
         public boolean next() throws SQLException {
+            if (rows.isEmpty() && !lastBatch) {
+                fetchBatch();
+            }
+            currentRow = rows.poll();
+            if (currentRow != null) {
+                beforeFirst = false;
+            }
+            if (currentRow == null) {
+                afterLast = true;
+            }
+            return (currentRow != null);
+        }
+
+        /**
+         * Take the prefetched batch, or fetch one if there is none, and start prefetching the next one.
+         */
+        private void fetchBatch() throws SQLException {
+            final int batchSize = (fetchSize > 0) ? fetchSize : DEFAULT_FETCH_SIZE;
+            List<List<Object>> batch;
+            int requested;
             try {
-                currentRow = rc.resultSetNext(handle);
-                if (currentRow != null) {
-                    beforeFirst = false;
-                }
-                if (currentRow == null) {
-                    afterLast = true;
+                if (nextBatch != null) {
+                    requested = nextBatchSize;
+                    batch = nextBatch.get();
+                } else {
+                    requested = batchSize;
+                    batch = rc.resultSetNextBatch(handle, batchSize);
                 }
-                return (currentRow != null);
             } catch (RemoteException e) {
                 throw new SQLException("Internal error", e);
+            } catch (ExecutionException e) {
+                throw new SQLException("Internal error", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted fetching rows", e);
+            } finally {
+                nextBatch = null;
+            }
+
+            rows.addAll(batch);
+            if (batch.size() < requested) {
+                lastBatch = true;
+                return;
             }
+
+            nextBatchSize = batchSize;
+            nextBatch = prefetcher.submit(new Callable<List<List<Object>>>() {
+                @Override
+                public List<List<Object>> call() throws Exception {
+                    return rc.resultSetNextBatch(handle, batchSize);
+                }
+            });
         }
 
         @Override
         public void close() throws SQLException {
             try {
                 if (!closed) {
+                    if (nextBatch != null) { /* the server result set must not be closed under the prefetch */
+                        try {
+                            nextBatch.get();
+                        } catch (ExecutionException e) {
+                            // the rows are not needed anymore
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        nextBatch = null;
+                    }
+                    rows.clear();
                     rc.resultSetClose(handle);
                     closed = true;
                 }
@@ -971,12 +1391,15 @@ public class ConnectionStub implements Connection {
 
         @Override
         public void setFetchSize(int rows) throws SQLException {
-
+            if (rows < 0) {
+                throw new SQLException("Invalid fetch size: "+rows);
+            }
+            fetchSize = rows;
         }
 
         @Override
         public int getFetchSize() throws SQLException {
-            return 0;
+            return fetchSize;
         }
 
         @Override
@@ -5,18 +5,44 @@ import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.sql.*;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DerbyConnection extends UnicastRemoteObject implements RemoteConnection {
 
+    static final int STATEMENT_CACHE_SIZE = 32;
+
     private Connection conn;
+    private CatalogCache catalog;
     private int nextResultSetHandle = 1;
-    Map<Integer, ResultSet> resultSetMap = new HashMap();
+    private int nextStatementHandle = 1;
+    Map<Integer, ResultSet> resultSetMap = new ConcurrentHashMap<>();
+    Map<Integer, String> preparedStatementMap = new ConcurrentHashMap<>();
+
+    /* Compiled statements by SQL text, least recently used first */
+    private Map<String, PreparedStatement> statementCache =
+            new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > STATEMENT_CACHE_SIZE) {
+                if (!busyStatements.containsValue(eldest.getValue())) {
+                    closeStatement(eldest.getValue());
+                }
+                return true;
+            }
+            return false;
+        }
+    };
 
-    DerbyConnection(Connection derbyConnection) throws RemoteException {
+    /* Statements with an open result set, by resultSet handle */
+    private Map<Integer, PreparedStatement> busyStatements = new ConcurrentHashMap<>();
+
+    DerbyConnection(Connection derbyConnection, CatalogCache catalog) throws RemoteException {
         conn = derbyConnection;
+        this.catalog = catalog;
     }
 
     /**
@@ -27,55 +53,95 @@ public class DerbyConnection extends UnicastRemoteObject implements RemoteConnec
      */
     @Override
     public int executeQuery(String sql) throws SQLException, RemoteException {
-        boolean throwSQLException = false;
+        return executeQuery(sql, Collections.emptyList());
+    }
+
+    @Override
+    public synchronized int prepareStatement(String sql) throws SQLException, RemoteException {
+        getCachedStatement(sql); // report SQL errors when the statement is prepared
+        int statementHandle = nextStatementHandle++;
+        preparedStatementMap.put(statementHandle, sql);
+        return statementHandle;
+    }
+
+    @Override
+    public int executePreparedQuery(int statementHandle, List<Object> parameters) throws SQLException, RemoteException {
+        String sql = preparedStatementMap.get(statementHandle);
+        if (sql == null) {
+            throw new RemoteException("Invalid statement handle: "+statementHandle);
+        }
+        return executeQuery(sql, parameters);
+    }
+
+    @Override
+    public void closePreparedStatement(int statementHandle) throws RemoteException {
+        // The compiled statement stays in the cache for the next prepare of the same SQL
+        preparedStatementMap.remove(statementHandle);
+    }
+
+    /**
+     * Execute sql with a cached compiled statement. A statement can only have one open result set, so if
+     * the cached one is still in use a private statement is prepared that is closed with its result set.
+     */
+    private synchronized int executeQuery(String sql, List<Object> parameters) throws SQLException {
+        PreparedStatement statement = getCachedStatement(sql);
+        if (busyStatements.containsValue(statement)) {
+            statement = conn.prepareStatement(sql);
+        }
+
+        ResultSet rs;
         try {
-            Statement statement = conn.createStatement();
-            ResultSet rs = null;
-            try {
-                rs = statement.executeQuery(sql);
-            } catch (SQLException e) {
-                throwSQLException = true;
-                throw e;
+            statement.clearParameters();
+            for (int i=0; i<parameters.size(); i++) {
+                Object value = parameters.get(i);
+                if (value == null) {
+                    statement.setNull(i+1, statement.getParameterMetaData().getParameterType(i+1));
+                } else {
+                    statement.setObject(i+1, value);
+                }
             }
-            int rsHandle = nextResultSetHandle++;
-            resultSetMap.put(rsHandle, rs);
-            return rsHandle;
+            rs = statement.executeQuery();
         } catch (SQLException e) {
-            if (throwSQLException) {
-                throw e;
+            if (!statementCache.containsValue(statement)) {
+                closeStatement(statement);
+            }
+            throw e;
+        } finally {
+            // Derby may have run DDL before rejecting it as not returning rows
+            if (CatalogCache.changesCatalog(sql)) {
+                catalog.invalidate();
             }
-            throw new RemoteException("Translator error", e);
+        }
+
+        int rsHandle = nextResultSetHandle++;
+        resultSetMap.put(rsHandle, rs);
+        busyStatements.put(rsHandle, statement);
+        return rsHandle;
+    }
+
+    private PreparedStatement getCachedStatement(String sql) throws SQLException {
+        PreparedStatement statement = statementCache.get(sql);
+        if (statement == null) {
+            statement = conn.prepareStatement(sql);
+            statementCache.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private void closeStatement(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // Nothing to do, the statement is not used again
         }
     }
 
     @Override
     public List<Object> resultSetNext(int resultSetHandle) throws RemoteException {
-        ResultSet rs = resultSetMap.get(resultSetHandle);
-        if (rs == null) {
-            throw new RemoteException("Invalid resultSet handle: "+resultSetHandle);
-        }
+        ResultSet rs = getResultSet(resultSetHandle);
         try {
-            ResultSetMetaData metaData = rs.getMetaData();
             if (rs.next()) {
-                int count = metaData.getColumnCount();
-                List<Object> rtrnRow = new ArrayList(count);
-                for (int i=1; i<=count; i++) {
-                    switch (metaData.getColumnType(i))  {
-                        case Types.CHAR:
-                        case Types.VARCHAR:
-                            rtrnRow.add(rs.getString(i));
-                            break;
-                        case Types.INTEGER:
-                            rtrnRow.add(rs.getInt(i));
-                            break;
-                        case Types.DOUBLE:
-                            rtrnRow.add(rs.getDouble(i));
-                            break;
-                        case Types.FLOAT:
-                            rtrnRow.add(rs.getFloat(i));
-                    }
-                }
-                return rtrnRow;
+                return readRow(rs, rs.getMetaData());
             }
             return null;
         } catch (SQLException e) {
@@ -83,6 +149,51 @@ public class DerbyConnection extends UnicastRemoteObject implements RemoteConnec
         }
     }
 
+    @Override
+    public List<List<Object>> resultSetNextBatch(int resultSetHandle, int maxRows) throws RemoteException {
+        ResultSet rs = getResultSet(resultSetHandle);
+        try {
+            ResultSetMetaData metaData = rs.getMetaData();
+            List<List<Object>> rtrnRows = new ArrayList<>(maxRows);
+            while (rtrnRows.size() < maxRows && rs.next()) {
+                rtrnRows.add(readRow(rs, metaData));
+            }
+            return rtrnRows;
+        } catch (SQLException e) {
+            throw new RemoteException("Translator error", e);
+        }
+    }
+
+    private ResultSet getResultSet(int resultSetHandle) throws RemoteException {
+        ResultSet rs = resultSetMap.get(resultSetHandle);
+        if (rs == null) {
+            throw new RemoteException("Invalid resultSet handle: "+resultSetHandle);
+        }
+        return rs;
+    }
+
+    private List<Object> readRow(ResultSet rs, ResultSetMetaData metaData) throws SQLException {
+        int count = metaData.getColumnCount();
+        List<Object> rtrnRow = new ArrayList(count);
+        for (int i=1; i<=count; i++) {
+            switch (metaData.getColumnType(i))  {
+                case Types.CHAR:
+                case Types.VARCHAR:
+                    rtrnRow.add(rs.getString(i));
+                    break;
+                case Types.INTEGER:
+                    rtrnRow.add(rs.getInt(i));
+                    break;
+                case Types.DOUBLE:
+                    rtrnRow.add(rs.getDouble(i));
+                    break;
+                case Types.FLOAT:
+                    rtrnRow.add(rs.getFloat(i));
+            }
+        }
+        return rtrnRow;
+    }
+
     @Override
     public void resultSetClose(int resultSetHandle) throws RemoteException {
         ResultSet rs = resultSetMap.remove(resultSetHandle);
@@ -92,13 +203,29 @@ public class DerbyConnection extends UnicastRemoteObject implements RemoteConnec
             }
         } catch (SQLException e) {
             throw new RemoteException("Translator error", e);
+        } finally {
+            releaseStatement(resultSetHandle);
+        }
+    }
+
+    /**
+     * Return the statement of a closed result set to the cache, or close it if it is no longer cached.
+     */
+    private synchronized void releaseStatement(int resultSetHandle) {
+        PreparedStatement statement = busyStatements.remove(resultSetHandle);
+        if (statement != null && !statementCache.containsValue(statement)) {
+            closeStatement(statement);
         }
     }
 
 
     @Override
-    public void close() throws RemoteException {
+    public synchronized void close() throws RemoteException {
         try {
+            for (PreparedStatement statement : statementCache.values()) {
+                closeStatement(statement);
+            }
+            statementCache.clear();
             conn.close();
         } catch (SQLException e) {
             throw new RemoteException("Translator error", e);
@@ -107,10 +234,7 @@ public class DerbyConnection extends UnicastRemoteObject implements RemoteConnec
 
     @Override
     public ResultSetMetaDataDTO getResultSetMetaData(int resultSetHandle) throws RemoteException {
-        ResultSet rs = resultSetMap.get(resultSetHandle);
-        if (rs == null) {
-            throw new RemoteException("Invalid resultSet handle: "+resultSetHandle);
-        }
+        ResultSet rs = getResultSet(resultSetHandle);
         try {
             return new ResultSetMetaDataDTO(rs.getMetaData());
         } catch (SQLException e) {
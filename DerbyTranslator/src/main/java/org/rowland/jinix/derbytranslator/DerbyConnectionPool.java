@@ -0,0 +1,188 @@
+package org.rowland.jinix.derbytranslator;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of embedded Derby connections for the translator's own catalog queries. Idle connections
+ * keep their prepared statements, are validated before reuse once they have been idle for a while, and
+ * are closed after IDLE_TIMEOUT.
+ */
+class DerbyConnectionPool {
+
+    static final int MAX_CONNECTIONS = 4;
+    static final long IDLE_TIMEOUT = 60 * 1000; // ms
+    static final long VALIDATION_INTERVAL = 10 * 1000; // ms
+    static final long BORROW_TIMEOUT = 30 * 1000; // ms
+    private static final int VALIDATION_TIMEOUT = 5; // seconds
+
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "DerbyConnectionPoolEvictor");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private Driver driver;
+    private String url;
+
+    /* most recently released first */
+    private LinkedList<PooledConnection> idle = new LinkedList<>();
+    private int borrowed = 0;
+    private boolean closed = false;
+    private ScheduledFuture<?> eviction;
+
+    DerbyConnectionPool(Driver driver, String url) {
+        this.driver = driver;
+        this.url = url;
+        eviction = evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take a connection from the pool, opening a new one if none is idle and the pool is not full. Waits
+     * up to BORROW_TIMEOUT for a connection to be released. Every borrowed connection must be returned
+     * with release().
+     */
+    synchronized PooledConnection borrow() throws SQLException {
+        long deadline = System.currentTimeMillis() + BORROW_TIMEOUT;
+        while (true) {
+            if (closed) {
+                throw new SQLException("Connection pool closed");
+            }
+
+            PooledConnection pc = idle.pollFirst();
+            if (pc != null) {
+                if (pc.isHealthy()) {
+                    borrowed++;
+                    return pc;
+                }
+                pc.close();
+                continue;
+            }
+
+            if (borrowed < MAX_CONNECTIONS) {
+                Connection conn = driver.connect(url, null);
+                if (conn == null) {
+                    throw new SQLException("No Derby connection for "+url);
+                }
+                borrowed++;
+                return new PooledConnection(conn);
+            }
+
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a database connection", e);
+            }
+        }
+    }
+
+    /**
+     * Return a borrowed connection. Connections marked invalid are closed instead of pooled.
+     */
+    synchronized void release(PooledConnection pc) {
+        borrowed--;
+        if (closed || pc.invalid) {
+            pc.close();
+        } else {
+            pc.lastUsed = System.currentTimeMillis();
+            idle.addFirst(pc);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Close the connections idle for longer than IDLE_TIMEOUT
+     */
+    synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        while (!idle.isEmpty() && now - idle.peekLast().lastUsed > IDLE_TIMEOUT) {
+            idle.pollLast().close();
+        }
+    }
+
+    /**
+     * Close all idle connections. Borrowed connections are closed when they are released.
+     */
+    synchronized void close() {
+        closed = true;
+        eviction.cancel(false);
+        while (!idle.isEmpty()) {
+            idle.pollFirst().close();
+        }
+        notifyAll();
+    }
+
+    class PooledConnection {
+
+        private Connection conn;
+        private Map<String, PreparedStatement> statements = new HashMap<>();
+        private long lastUsed = System.currentTimeMillis();
+        private boolean invalid = false;
+
+        private PooledConnection(Connection conn) {
+            this.conn = conn;
+        }
+
+        /**
+         * A prepared statement for sql, compiled on the first use with this connection. Statements are
+         * owned by the connection and must not be closed by the caller.
+         */
+        PreparedStatement prepareStatement(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null) {
+                ps = conn.prepareStatement(sql);
+                statements.put(sql, ps);
+            }
+            return ps;
+        }
+
+        /**
+         * Do not return this connection to the pool, for instance after an unexpected SQLException
+         */
+        void invalidate() {
+            invalid = true;
+        }
+
+        private boolean isHealthy() {
+            try {
+                if (System.currentTimeMillis() - lastUsed > VALIDATION_INTERVAL) {
+                    return conn.isValid(VALIDATION_TIMEOUT);
+                }
+                return !conn.isClosed();
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private void close() {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                // Nothing to do, the connection is discarded
+            }
+        }
+    }
+}
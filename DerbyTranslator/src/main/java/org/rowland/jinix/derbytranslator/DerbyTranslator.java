@@ -29,10 +29,15 @@ public class DerbyTranslator extends UnicastRemoteObject implements FileNameSpac
     FileNameSpace parent;
     String pathWithinParent;
 
+    /* connections for the translator's own catalog queries */
+    private DerbyConnectionPool pool;
+
+    /* tables of the APP schema served to the name space calls */
+    private CatalogCache catalog;
+
     private String APPSchemaId;
 
-    private static final String ALL_TABLES_SQL = "select TABLENAME from SYS.SYSTABLES where TABLETYPE in ('T','A','V') and SCHEMAID=? order by TABLENAME";
-    private static final String TABLE_COUNT_SQL = "select count(*) from SYS.SYSTABLES where TABLETYPE in ('T','A','V') and SCHEMAID=? and TABLENAME=?";
+    private static final String APP_SCHEMA_SQL = "select SCHEMAID from SYS.SYSSCHEMAS where SCHEMANAME='APP'";
 
     private static final String[] ROOT_DIRECTORY_NAMES = new String[] {"datasource", "schema", "data"};
     private static final String[] SCHEMA_DIRECTORY_NAMES = new String[] {"tables", "indexes"};
@@ -56,14 +61,19 @@ public class DerbyTranslator extends UnicastRemoteObject implements FileNameSpac
 
         try {
             driver = new AutoloadedDriver();
-            Connection conn = driver.connect("jdbc:derby:" + databaseName, null);
-
-            ResultSet schemas = conn.createStatement().executeQuery("select SCHEMAID from SYS.SYSSCHEMAS where SCHEMANAME='APP'");
+            pool = new DerbyConnectionPool(driver, "jdbc:derby:" + databaseName);
+            DerbyConnectionPool.PooledConnection conn = pool.borrow();
+            try {
+                ResultSet schemas = conn.prepareStatement(APP_SCHEMA_SQL).executeQuery();
 
-            if (schemas.next()) {
-                APPSchemaId = schemas.getString(1);
+                if (schemas.next()) {
+                    APPSchemaId = schemas.getString(1);
+                }
+                schemas.close();
+            } finally {
+                pool.release(conn);
             }
-            schemas.close();
+            catalog = new CatalogCache(pool, APPSchemaId);
 
         } catch (SQLException e) {
             throw new RemoteException("Failure initializing Derby database at "+databaseName, e);
@@ -71,6 +81,7 @@ public class DerbyTranslator extends UnicastRemoteObject implements FileNameSpac
     }
 
     private void shutdown() {
+        pool.close();
         try {
             driver.connect("jdbc:derby:;shutdown=true", null);
         } catch (SQLException se) {
@@ -279,7 +290,7 @@ public class DerbyTranslator extends UnicastRemoteObject implements FileNameSpac
         }
 
         DirectoryFileData dfd = new DirectoryFileData();
-        dfd.name = filePath.substring((filePath.equals("/schema") ? "/schema".length() : "/data".length()));
+        dfd.name = filePath.substring((filePath.startsWith("/schema/") ? "/schema/".length() : "/data/".length()));
         dfd.length = 0;
         dfd.type = DirectoryFileData.FileType.FILE;
         dfd.lastModified = 0;
@@ -310,48 +321,32 @@ public class DerbyTranslator extends UnicastRemoteObject implements FileNameSpac
         }
 
         if (filePathName.startsWith("/data/")) {
-            try {
-                Connection conn = driver.connect("jdbc:derby:" + databaseName, null);
-                try {
-                    PreparedStatement ps = conn.prepareStatement(TABLE_COUNT_SQL);
-                    ps.setString(1, APPSchemaId);
-                    ps.setString(2, filePathName.substring("/data/".length()));
-                    ResultSet rs = ps.executeQuery();
-                    while (rs.next()) {
-                        return (rs.getInt(1) > 0);
-                    }
-                    throw new RuntimeException("Translator Error");
-                } finally {
-                    conn.close();
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException("Translator Error", e);
-            }
+            return tableExists(filePathName.substring("/data/".length()));
         }
 
         if (filePathName.startsWith("/schema/")) {
-            try {
-                Connection conn = driver.connect("jdbc:derby:" + databaseName, null);
-                try {
-                    PreparedStatement ps = conn.prepareStatement(TABLE_COUNT_SQL);
-                    ps.setString(1, APPSchemaId);
-                    ps.setString(2, filePathName.substring("/data/".length()));
-                    ResultSet rs = ps.executeQuery();
-                    while (rs.next()) {
-                        return (rs.getInt(1) > 0);
-                    }
-                    throw new RuntimeException("Translator Error");
-                } finally {
-                    conn.close();
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException("Translator Error", e);
-            }
+            return tableExists(filePathName.substring("/schema/".length()));
         }
 
         return false;
     }
 
+    private boolean tableExists(String tableName) {
+        try {
+            return (catalog.getTable(tableName) != null);
+        } catch (SQLException e) {
+            throw new RuntimeException("Translator Error", e);
+        }
+    }
+
+    private String[] listTables() {
+        try {
+            return catalog.getTableNames().clone();
+        } catch (SQLException e) {
+            throw new RuntimeException("Translator Error", e);
+        }
+    }
+
     @Override
     public String[] list(String s) throws NotDirectoryException, RemoteException {
 
@@ -360,26 +355,7 @@ public class DerbyTranslator extends UnicastRemoteObject implements FileNameSpac
         }
 
         if (s.equals("/data")) {
-            try {
-                Connection conn = driver.connect("jdbc:derby:" + databaseName, null);
-                try {
-                    List<String> tableNames = new ArrayList<String>();
-                    PreparedStatement ps = conn.prepareStatement(ALL_TABLES_SQL);
-                    ps.setString(1, APPSchemaId);
-                    ResultSet tables = ps.executeQuery();
-                    while (tables.next()) {
-                        tableNames.add(tables.getString(1));
-                    }
-                    ps.close();
-                    tables.close();
-
-                    return tableNames.toArray(new String[tableNames.size()]);
-                } finally {
-                    conn.close();
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException("Translator Error", e);
-            }
+            return listTables();
         }
 
         if (s.equals("/schema")) {
@@ -471,44 +447,11 @@ public class DerbyTranslator extends UnicastRemoteObject implements FileNameSpac
             return new SimpleDirectoryRemoteFileHandle(this, "/data");
         }
 
-        if (filePathName.startsWith("/data/")) {
-            try {
-                Connection conn = driver.connect("jdbc:derby:" + databaseName, null);
-                try {
-                    PreparedStatement ps = conn.prepareStatement(TABLE_COUNT_SQL);
-                    ps.setString(1, APPSchemaId);
-                    ps.setString(2, filePathName.substring("/data/".length()));
-                    ResultSet rs = ps.executeQuery();
-                    while (rs.next()) {
-                        return new BaseRemoteFileHandleImpl(this, filePathName);
-                    }
-                    return null;
-                } finally {
-                    conn.close();
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException("Translator Error", e);
-            }
-        }
-
-        if (filePathName.startsWith("/schema/")) {
-            try {
-                Connection conn = driver.connect("jdbc:derby:" + databaseName, null);
-                try {
-                    PreparedStatement ps = conn.prepareStatement(TABLE_COUNT_SQL);
-                    ps.setString(1, APPSchemaId);
-                    ps.setString(2, filePathName.substring("/schema/".length()));
-                    ResultSet rs = ps.executeQuery();
-                    while (rs.next()) {
-                        return new BaseRemoteFileHandleImpl(this, filePathName);
-                    }
-                    return null;
-                } finally {
-                    conn.close();
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException("Translator Error", e);
+        if (filePathName.startsWith("/data/") || filePathName.startsWith("/schema/")) {
+            if (exists(filePathName)) {
+                return new BaseRemoteFileHandleImpl(this, filePathName);
             }
+            return null;
         }
 
         return null;
@@ -535,7 +478,7 @@ public class DerbyTranslator extends UnicastRemoteObject implements FileNameSpac
     public RemoteConnection getConnection(String username, String password) throws RemoteException {
         try {
             Connection conn = driver.connect("jdbc:derby:" + databaseName, null);
-            return new DerbyConnection(conn);
+            return new DerbyConnection(conn, catalog);
         } catch (SQLException e) {
             throw new RemoteException("Translator error", e);
         }
@@ -11,8 +11,29 @@ public interface RemoteConnection extends Remote {
 
     int executeQuery(String sql) throws SQLException, RemoteException;
 
+    /**
+     * Compile sql once on the server.
+     *
+     * @return a statement handle for executePreparedQuery
+     */
+    int prepareStatement(String sql) throws SQLException, RemoteException;
+
+    /**
+     * Execute a prepared statement with the parameter values bound in order. A null value binds SQL NULL.
+     *
+     * @return a resultSet handle
+     */
+    int executePreparedQuery(int statementHandle, List<Object> parameters) throws SQLException, RemoteException;
+
+    void closePreparedStatement(int statementHandle) throws RemoteException;
+
     List<Object> resultSetNext(int resultSetHandle) throws RemoteException;
 
+    /**
+     * Fetch up to maxRows rows. A batch with less than maxRows rows is the last one.
+     */
+    List<List<Object>> resultSetNextBatch(int resultSetHandle, int maxRows) throws RemoteException;
+
     void resultSetClose(int resultSetHandle) throws RemoteException;
 
     ResultSetMetaDataDTO getResultSetMetaData(int resultSetHandle) throws RemoteException;
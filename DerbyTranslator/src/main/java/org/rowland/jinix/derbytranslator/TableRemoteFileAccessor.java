@@ -6,10 +6,10 @@ import org.rowland.jinix.naming.RemoteFileHandle;
 
 import java.nio.channels.NonReadableChannelException;
 import java.nio.channels.NonWritableChannelException;
-import java.nio.charset.Charset;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.sql.*;
+import java.util.Arrays;
 
 public class TableRemoteFileAccessor extends UnicastRemoteObject implements RemoteFileAccessor {
 
@@ -18,8 +18,13 @@ public class TableRemoteFileAccessor extends UnicastRemoteObject implements Remo
     private Connection conn;
     private ResultSet rs;
     private ResultSetMetaData metaData;
-    private byte[] currentRowByte;
+    private ColumnEncoder[] encoders;
+
+    /* the current row encoded as US-ASCII CSV, reused for every row */
+    private byte[] row = new byte[1024];
+    private int rowLength;
     private int currentRowPosition;
+    private boolean endOfTable = false;
     private long filePosition;
     private int openCount;
 
@@ -32,6 +37,10 @@ public class TableRemoteFileAccessor extends UnicastRemoteObject implements Remo
             PreparedStatement ps = conn.prepareStatement("select * from " + tableName);
             rs = ps.executeQuery();
             metaData = rs.getMetaData();
+            encoders = new ColumnEncoder[metaData.getColumnCount()];
+            for (int col=1; col<=encoders.length; col++) {
+                encoders[col-1] = getColumnEncoder(metaData.getColumnType(col));
+            }
             loadDatabaseRowAsBytes();
             filePosition = 0;
             openCount = 1;
@@ -48,25 +57,25 @@ public class TableRemoteFileAccessor extends UnicastRemoteObject implements Remo
     @Override
     public synchronized byte[] read(int pgid, int length) throws NonReadableChannelException, RemoteException {
         try {
+            if (endOfTable) {
+                return new byte[0];
+            }
+
             byte[] rtrn = new byte[length];
             int rtrnPos = 0;
-            while(rtrnPos < length && currentRowByte.length > 0) {
-                if (currentRowPosition == currentRowByte.length) {
+            while(rtrnPos < length && !endOfTable) {
+                if (currentRowPosition == rowLength) {
                     loadDatabaseRowAsBytes();
                     continue;
                 }
-                int bytesToCopy = Math.min(length-rtrnPos,currentRowByte.length-currentRowPosition);
-                System.arraycopy(currentRowByte, currentRowPosition, rtrn, rtrnPos, bytesToCopy);
+                int bytesToCopy = Math.min(length-rtrnPos,rowLength-currentRowPosition);
+                System.arraycopy(row, currentRowPosition, rtrn, rtrnPos, bytesToCopy);
                 rtrnPos += bytesToCopy;
                 currentRowPosition += bytesToCopy;
                 filePosition += bytesToCopy;
             }
-            if (rtrnPos < length) {
-                byte[] rtrn2 = new byte[rtrnPos];
-                System.arraycopy(rtrn, 0, rtrn2, 0, rtrnPos);
-                return rtrn2;
-            }
-            return rtrn;
+            // Only the last read of the table comes up short
+            return (rtrnPos == length) ? rtrn : Arrays.copyOf(rtrn, rtrnPos);
         } catch (SQLException e) {
             throw new RemoteException("Translator Error", e);
         }
@@ -84,7 +93,7 @@ public class TableRemoteFileAccessor extends UnicastRemoteObject implements Remo
 
     @Override
     public int available() throws RemoteException {
-        return currentRowByte.length - currentRowPosition;
+        return rowLength - currentRowPosition;
     }
 
     @Override
@@ -138,26 +147,125 @@ public class TableRemoteFileAccessor extends UnicastRemoteObject implements Remo
     }
 
     private void loadDatabaseRowAsBytes() throws SQLException {
-        StringBuilder currentRowString = new StringBuilder(1024);
+        rowLength = 0;
+        currentRowPosition = 0;
         if (rs.next()) {
-            int colCount = metaData.getColumnCount();
-            for(int col=1; col<=colCount; col++) {
+            for(int col=1; col<=encoders.length; col++) {
                 if (col > 1) {
-                    currentRowString.append(',');
-                }
-                if (isStringDataType(metaData.getColumnType(col))) {
-                    currentRowString.append("\"" + rs.getString(col) + "\"");
-                } else {
-                    currentRowString.append(rs.getString(col));
+                    put((byte) ',');
                 }
+                encoders[col-1].encode(col);
             }
-            currentRowString.append('\n');
-            currentRowByte = currentRowString.toString().getBytes(Charset.forName("US-ASCII"));
+            put((byte) '\n');
         } else {
-            currentRowByte = new byte[0];
+            endOfTable = true;
         }
+    }
 
-        currentRowPosition = 0;
+    /**
+     * Writes one column of the current row to the row buffer
+     */
+    private interface ColumnEncoder {
+        void encode(int col) throws SQLException;
+    }
+
+    private ColumnEncoder getColumnEncoder(int dataType) {
+        if (isStringDataType(dataType)) {
+            return new ColumnEncoder() {
+                @Override
+                public void encode(int col) throws SQLException {
+                    put((byte) '"');
+                    putAscii(rs.getString(col));
+                    put((byte) '"');
+                }
+            };
+        }
+
+        if (isIntegerDataType(dataType)) {
+            return new ColumnEncoder() {
+                @Override
+                public void encode(int col) throws SQLException {
+                    long value = rs.getLong(col);
+                    if (rs.wasNull()) {
+                        putAscii(null);
+                    } else {
+                        putLong(value);
+                    }
+                }
+            };
+        }
+
+        return new ColumnEncoder() {
+            @Override
+            public void encode(int col) throws SQLException {
+                putAscii(rs.getString(col));
+            }
+        };
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > row.length) {
+            row = Arrays.copyOf(row, Math.max(capacity, row.length * 2));
+        }
+    }
+
+    private void put(byte b) {
+        ensureCapacity(rowLength + 1);
+        row[rowLength++] = b;
+    }
+
+    /**
+     * Append s encoded as US-ASCII, characters outside of ASCII become '?'. A null string is
+     * written as null.
+     */
+    private void putAscii(String s) {
+        if (s == null) {
+            s = "null";
+        }
+        int len = s.length();
+        ensureCapacity(rowLength + len);
+        for (int i=0; i<len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (Character.isHighSurrogate(c) && i+1 < len && Character.isLowSurrogate(s.charAt(i+1))) {
+                    i++;
+                }
+                c = '?';
+            }
+            row[rowLength++] = (byte) c;
+        }
+    }
+
+    private void putLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            putAscii(Long.toString(value));
+            return;
+        }
+
+        ensureCapacity(rowLength + 20);
+        if (value < 0) {
+            row[rowLength++] = '-';
+            value = -value;
+        }
+        int end = rowLength;
+        do {
+            row[end++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        for (int i=rowLength, j=end-1; i<j; i++, j--) {
+            byte b = row[i];
+            row[i] = row[j];
+            row[j] = b;
+        }
+        rowLength = end;
+    }
+
+    private boolean isIntegerDataType(int dataType) {
+        return (dataType == Types.BIGINT ||
+                dataType == Types.INTEGER ||
+                dataType == Types.SMALLINT ||
+                dataType == Types.TINYINT);
     }
 
     private boolean isStringDataType(int dataType) {
@@ -0,0 +1,107 @@
+package org.rowland.jinix.derbytranslator;
+
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectionStubTest {
+
+    /**
+     * Serves one result set with the integers 0..rows-1
+     */
+    private static class FakeRemoteConnection implements RemoteConnection {
+
+        private int rows;
+        private int position = 0;
+
+        FakeRemoteConnection(int rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public int executeQuery(String sql) {
+            return 1;
+        }
+
+        @Override
+        public int prepareStatement(String sql) {
+            return 1;
+        }
+
+        @Override
+        public int executePreparedQuery(int statementHandle, List<Object> parameters) {
+            return 1;
+        }
+
+        @Override
+        public void closePreparedStatement(int statementHandle) {
+        }
+
+        @Override
+        public synchronized List<Object> resultSetNext(int resultSetHandle) {
+            return (position < rows) ? Collections.<Object>singletonList(position++) : null;
+        }
+
+        @Override
+        public synchronized List<List<Object>> resultSetNextBatch(int resultSetHandle, int maxRows) {
+            List<List<Object>> batch = new ArrayList<>();
+            while (batch.size() < maxRows && position < rows) {
+                batch.add(Collections.<Object>singletonList(position++));
+            }
+            return batch;
+        }
+
+        @Override
+        public void resultSetClose(int resultSetHandle) {
+        }
+
+        @Override
+        public ResultSetMetaDataDTO getResultSetMetaData(int resultSetHandle) {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static int readAll(ResultSet rs, int changeFetchSizeAt, int newFetchSize) throws SQLException {
+        int n = 0;
+        while (rs.next()) {
+            assertEquals(n, rs.getInt(1));
+            n++;
+            if (n == changeFetchSizeAt) {
+                rs.setFetchSize(newFetchSize);
+            }
+        }
+        rs.close();
+        return n;
+    }
+
+    @Test
+    public void readsAllRows() throws SQLException {
+        Statement statement = new ConnectionStub(new FakeRemoteConnection(1234)).createStatement();
+        assertEquals(1234, readAll(statement.executeQuery("select"), -1, 0));
+    }
+
+    @Test
+    public void fetchSizeRaisedMidIteration() throws SQLException {
+        Statement statement = new ConnectionStub(new FakeRemoteConnection(1000)).createStatement();
+        statement.setFetchSize(10);
+        assertEquals(1000, readAll(statement.executeQuery("select"), 5, 100));
+    }
+
+    @Test
+    public void fetchSizeLoweredMidIteration() throws SQLException {
+        Statement statement = new ConnectionStub(new FakeRemoteConnection(1000)).createStatement();
+        statement.setFetchSize(100);
+        assertEquals(1000, readAll(statement.executeQuery("select"), 50, 7));
+    }
+}
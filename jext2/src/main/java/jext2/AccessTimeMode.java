@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2011 Marcel Lauhoff.
+ *
+ * This file is part of jext2.
+ *
+ * jext2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jext2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jext2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jext2;
+
+/**
+ * How reading file data updates the access time (atime) of an inode.
+ * Corresponds to the strictatime, relatime, noatime and lazytime mount
+ * options of the Linux kernel.
+ */
+public enum AccessTimeMode {
+	/** Update and write the inode on every read */
+	STRICT,
+	/**
+	 * Update only if atime is not newer than mtime or ctime, or older than
+	 * a day
+	 */
+	RELATIME,
+	/** Never update atime */
+	NOATIME,
+	/**
+	 * Update atime in memory on every read. The inode is written when
+	 * the filesystem is synced or the inode is evicted.
+	 */
+	LAZYTIME;
+
+	/** atime older than this is always refreshed in RELATIME mode */
+	static final long RELATIME_INTERVAL = 24 * 60 * 60 * 1000L;
+
+	public static AccessTimeMode fromString(String mode) {
+		return valueOf(mode.toUpperCase());
+	}
+}
@@ -43,47 +43,92 @@ public class Bitmap extends Block {
 	 * Return bit position of next zero in bitmap. Search up to numBytes bytes including the
 	 * byte in wich start is located. This means that a search starting at the last bit in one
 	 * byte will just check a single bit.
+	 * @return position or -1 if there is no zero bit in the range
 	 */
 	public int getNextZeroBitPos(int start, int numBytes) {
-		bmapLock.lock();
-		if ((bmap.limit() - start) == 0) {
-			bmapLock.unlock();
-			return -1;
-		}
+		int end = (int)Math.min((long)bmap.limit() * 8, ((long)start / 8 + numBytes) * 8);
 
-		int pos = -1;
-		int byteNum = start / 8;
-		byte offset = (byte) (start % 8);
-		byte chunk;
-
-		bmap.position(byteNum);
+		int pos = getNextBitPos(start, end, false);
+		if (pos >= end)
+			return -1;
 
-		/* start may not be byte aligned - mask first XX bits */
-		chunk = bmap.get();
+		assert !isSet(pos);
+		return pos;
+	}
 
-		chunk = (byte)((0xFF >> offset) ^ 0xFF | chunk);
+	public int getNextZeroBitPos(int start) {
+		return getNextZeroBitPos(start, bmap.limit());
+	}
 
-		while(bmap.hasRemaining() && numBytes > 0) {
-			if (chunk == 0) { /* is zero */
+	/**
+	 * Return position of the first bit with value in [start, end) or end if there
+	 * is none. The bitmap is scanned a 64 bit word at a time.
+	 */
+	public int getNextBitPos(int start, int end, boolean value) {
+		end = Math.min(end, bmap.limit() * 8);
 
-				pos = (bmap.position()-1) * 8;
-				break;
-			} else if (chunk != (byte)0xFF) { /* has at least one zero bit */
-				pos = (bmap.position()-1)*8 + findRightModeZeroBitInByte(chunk);
+		bmapLock.lock();
+		int pos = start;
+		while (pos < end) {
+			int word = pos >>> 6;
+			long bits = getWord(word);
+			if (!value)
+				bits = ~bits;
+
+			bits &= -1L << (pos & 63); /* mask bits before pos */
+			if (bits != 0) {
+				pos = (word << 6) + Long.numberOfTrailingZeros(bits);
 				break;
 			}
-
-			chunk = bmap.get();
-			numBytes--;
+			pos = (word + 1) << 6;
 		}
-
-		assert !isSet(pos);
 		bmapLock.unlock();
-		return pos;
+
+		return Math.min(pos, end);
 	}
 
-	public int getNextZeroBitPos(int start) {
-		return getNextZeroBitPos(start, bmap.limit());
+	/**
+	 * Find the first run of length zero bits starting at or after start
+	 * @return position of the run or -1 if there is none
+	 */
+	public int findZeroRun(int start, int length) {
+		return findZeroRun(start, length, bmap.limit() * 8);
+	}
+
+	/**
+	 * Find the first run of length zero bits in [start, end)
+	 * @return position of the run or -1 if there is none
+	 */
+	public int findZeroRun(int start, int length, int end) {
+		if (length < 1)
+			throw new IllegalArgumentException();
+
+		end = Math.min(end, bmap.limit() * 8);
+
+		int pos = getNextBitPos(start, end, false);
+		while (pos + length <= end) {
+			int used = getNextBitPos(pos, pos + length, true);
+			if (used == pos + length)
+				return pos;
+
+			pos = getNextBitPos(used, end, false);
+		}
+		return -1;
+	}
+
+	/**
+	 * Bitmap word wordNr as little endian long. Bytes beyond the bitmap are zero.
+	 */
+	private long getWord(int wordNr) {
+		int offset = wordNr * 8;
+		if (offset + 8 <= bmap.limit())
+			return bmap.getLong(offset);
+
+		long bits = 0;
+		for (int i=0; offset + i < bmap.limit(); i++) {
+			bits |= (bmap.get(offset + i) & 0xFFL) << (i * 8);
+		}
+		return bits;
 	}
 
 	/**
@@ -36,37 +36,63 @@ public class BlockAccess {
 	private FileChannel blockdev;
 	private static BlockAccess instance;
 
+	/** default number of blocks kept in the block cache */
+	public static final int DEFAULT_CACHE_BLOCKS = 1024;
+
 	/** number of pointers in indirection block */
 	private int ptrs;
 
+	private int cacheBlocks;
+	private BlockCache cache = null;
+	private MappedBlockDevice mapped = null;
+
+	/* group commit of device forces, see #force() */
+	private final Object forceLock = new Object();
+	private long forceRequested = 0;
+	private long forceCompleted = 0;
+	private boolean forcing = false;
+
 	public BlockAccess(FileChannel blockdev) {
+		this(blockdev, DEFAULT_CACHE_BLOCKS);
+	}
+
+	/**
+	 * @param cacheBlocks   number of blocks held in the write-back block cache.
+	 *                      Zero disables the cache.
+	 */
+	public BlockAccess(FileChannel blockdev, int cacheBlocks) {
 		if (BlockAccess.instance != null) {
 			throw new RuntimeException("BlockAccess is singleton!");
 		}
 		this.blockdev = blockdev;
+		this.cacheBlocks = cacheBlocks;
 		BlockAccess.instance = this;
 	}
 
 	/** Read a block off size specified by setBlocksize() at logical address nr */
 	public ByteBuffer read(long nr) throws IoError {
 		ByteBuffer buf = ByteBuffer.allocate(blocksize);
-		try {
-			buf.order(ByteOrder.BIG_ENDIAN);
-			blockdev.read(buf,((nr & 0xffffffff) * blocksize));
-		} catch (IOException e) {
-			throw new IoError(e.getMessage());
+		buf.order(ByteOrder.BIG_ENDIAN);
+
+		if (cache != null) {
+			cache.read(nr & 0xffffffff, 0, buf, blocksize);
+			buf.rewind();
+			return buf;
 		}
 
+		deviceRead(buf, (nr & 0xffffffff) * blocksize);
 		return buf;
 	}
 
 	public void readToBuffer(long nr, long offsetInBlock, ByteBuffer buf) throws IoError {
-		try {
-			buf.order(ByteOrder.BIG_ENDIAN);
-			blockdev.read(buf, ((nr & 0xffffffff) * blocksize) + offsetInBlock);
-		} catch (IOException e) {
-			throw new IoError(e.getMessage());
+		buf.order(ByteOrder.BIG_ENDIAN);
+
+		if (cache != null && offsetInBlock + buf.remaining() <= blocksize) {
+			cache.read(nr & 0xffffffff, (int)offsetInBlock, buf, buf.remaining());
+			return;
 		}
+
+		readToBufferUnsynchronized(((nr & 0xffffffff) * blocksize) + offsetInBlock, buf);
 	}
 
 
@@ -80,22 +106,20 @@ public class BlockAccess {
 	 */
 	@NotThreadSafe(useLock=true)
 	public void readToBufferUnsynchronized(long position, ByteBuffer buf) throws IoError {
-		try {
-			buf.order(ByteOrder.BIG_ENDIAN);
-			blockdev.read(buf, position);
-		} catch (IOException e) {
-			throw new IoError(e.getMessage());
-		}
+		if (cache != null)
+			cache.flush(position, buf.remaining());
+
+		buf.order(ByteOrder.BIG_ENDIAN);
+		deviceRead(buf, position);
 	}
 
 	@NotThreadSafe(useLock=true)
 	public void writeFromBufferUnsynchronized(long position, ByteBuffer buf) throws IoError {
+		if (cache != null)
+			cache.invalidate(position, buf.remaining());
+
 		buf.order(ByteOrder.BIG_ENDIAN);
-		try {
-			blockdev.write(buf, position);
-		} catch (IOException e) {
-			throw new IoError(e.getMessage());
-		}
+		deviceWrite(buf, position);
 	}
 
 	/**
@@ -110,11 +134,16 @@ public class BlockAccess {
 	/** Write a whole block to the logical address nr on disk */
 	public void write(long nr, ByteBuffer buf) throws IoError {
 		buf.rewind();
-		try {
-			blockdev.write(buf,(nr & 0xffffffff) * blocksize); 
-		} catch (IOException e) {
-			throw new IoError(e.getMessage());
+
+		if (cache != null) {
+			if (buf.limit() <= blocksize) {
+				cache.write(nr & 0xffffffff, 0, buf);
+				return;
+			}
+			cache.invalidate((nr & 0xffffffff) * blocksize, buf.limit());
 		}
+
+		deviceWrite(buf, (nr & 0xffffffff) * blocksize);
 	}
 
 	public void dumpByteBuffer(ByteBuffer buf) {
@@ -131,9 +160,69 @@ public class BlockAccess {
 	}
 
 	/**
-	 * Force changes to disc
+	 * Write back the block cache and force changes to disc
 	 */
 	public void sync() throws IoError {
+		if (cache != null)
+			cache.flush();
+
+		force();
+	}
+
+	/**
+	 * Write block nr back to the device if it is dirty in the block cache
+	 */
+	public void flush(long nr) throws IoError {
+		if (cache != null)
+			cache.flush((nr & 0xffffffff) * blocksize, blocksize);
+	}
+
+	/**
+	 * Force everything written to the device so far to stable storage.
+	 * Concurrent callers are batched: while one force is running, callers
+	 * queue up and the next force covers all of them (group commit).
+	 */
+	public void force() throws IoError {
+		long ticket;
+		long target;
+
+		synchronized (forceLock) {
+			ticket = ++forceRequested;
+			while (forcing && forceCompleted < ticket) {
+				try {
+					forceLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IoError("interrupted waiting for force");
+				}
+			}
+			if (forceCompleted >= ticket)
+				return;
+
+			forcing = true;
+			target = forceRequested;
+		}
+
+		boolean forced = false;
+		try {
+			forceDevice();
+			forced = true;
+		} finally {
+			synchronized (forceLock) {
+				forcing = false;
+				if (forced) /* waiters of a failed force retry on their own */
+					forceCompleted = Math.max(forceCompleted, target);
+				forceLock.notifyAll();
+			}
+		}
+	}
+
+	private void forceDevice() throws IoError {
+		if (mapped != null) {
+			mapped.force();
+			return;
+		}
+
 		try {
 			blockdev.force(false);
 		} catch (IOException e) {
@@ -151,18 +240,70 @@ public class BlockAccess {
 		if (offset + buf.limit() > blocksize)
 			throw new IllegalArgumentException("attempt to write over block boundries" + buf + ", " + offset);
 
-		try {
-			buf.rewind();
-			blockdev.write(buf, (((nr & 0xffffffff) * blocksize) + offset));
+		buf.rewind();
 
-		} catch (IOException e) {
-			throw new IoError(e.getMessage());
+		if (cache != null) {
+			cache.write(nr & 0xffffffff, (int)offset, buf);
+			return;
 		}
+
+		deviceWrite(buf, ((nr & 0xffffffff) * blocksize) + offset);
 	}
 
 	public void initialize(Superblock superblock) {
 		blocksize = superblock.getBlocksize();
 		ptrs = superblock.getAddressesPerBlock();
+
+		if (cacheBlocks > 0 && mapped == null)
+			cache = new BlockCache(blockdev, cacheBlocks, blocksize);
+	}
+
+	/**
+	 * Switch to memory mapped access. The device is mapped into memory and all
+	 * reads and writes become memory copies. The block cache is not used in
+	 * this mode because the mapping already is one. Call this before
+	 * initialize(). Only works when the device is a regular file.
+	 * @return true if the device was mapped, false if the channel can not be
+	 *     mapped and we stay with positional reads and writes
+	 */
+	public boolean mapDevice() {
+		try {
+			mapped = MappedBlockDevice.map(blockdev);
+		} catch (IOException | UnsupportedOperationException e) {
+			Filesystem.getLogger().warning("Cannot map block device, using FileChannel: " + e);
+			mapped = null;
+		}
+		return mapped != null;
+	}
+
+	public boolean isDeviceMapped() {
+		return mapped != null;
+	}
+
+	private void deviceRead(ByteBuffer buf, long position) throws IoError {
+		if (mapped != null) {
+			mapped.read(buf, position);
+			return;
+		}
+
+		try {
+			blockdev.read(buf, position);
+		} catch (IOException e) {
+			throw new IoError(e.getMessage());
+		}
+	}
+
+	private void deviceWrite(ByteBuffer buf, long position) throws IoError {
+		if (mapped != null) {
+			mapped.write(buf, position);
+			return;
+		}
+
+		try {
+			blockdev.write(buf, position);
+		} catch (IOException e) {
+			throw new IoError(e.getMessage());
+		}
 	}
 
 	/**
@@ -178,11 +319,7 @@ public class BlockAccess {
 		long[] result = new long[numEntries];
 		ByteBuffer buffer = ByteBuffer.allocate(numEntries*4);
 
-		try {
-			readToBufferUnsynchronized(dataBlock*blocksize + start*4, buffer);
-		} catch (IoError e) {
-			throw e;
-		}
+		readToBuffer(dataBlock, start*4, buffer);
 
 		for (int i=0; i<numEntries; i++) {
 			result[i] = Ext2fsDataTypes.getLE32U(buffer, i*4);
@@ -206,11 +343,7 @@ public class BlockAccess {
 		LinkedList<Long> result = new LinkedList<Long>();
 		ByteBuffer buffer = ByteBuffer.allocate(numEntries*4);
 
-		try {
-			readToBufferUnsynchronized(dataBlock*blocksize + start*4, buffer);
-		} catch (IoError e) {
-			throw e;
-		}
+		readToBuffer(dataBlock, start*4, buffer);
 
 		for (int i=0; i<numEntries; i++) {
 			long tmp = Ext2fsDataTypes.getLE32U(buffer, i*4);
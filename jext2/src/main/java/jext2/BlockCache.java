@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2011 Marcel Lauhoff.
+ *
+ * This file is part of jext2.
+ *
+ * jext2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jext2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jext2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jext2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jext2.exceptions.IoError;
+
+/**
+ * Bounded write-back cache of whole filesystem blocks keyed by physical
+ * block number. Eviction uses the CLOCK (second chance) algorithm. Dirty
+ * blocks are written to the device when they are evicted or on #flush().
+ *
+ * Lookups go through a ConcurrentHashMap, the contents of a cached block
+ * are guarded by the monitor of its CachedBlock. The clock itself is
+ * guarded by clockLock which is only taken when a block enters or leaves
+ * the cache. A block enters the cache empty and is read from the device
+ * under its own monitor, so an eviction or invalidation always sees
+ * either no copy or the one that is returned to callers.
+ */
+class BlockCache {
+	private FileChannel blockdev;
+	private int blocksize;
+
+	private ConcurrentHashMap<Long, CachedBlock> table;
+	private CachedBlock[] clock;
+	private int hand = 0;
+	private ReentrantLock clockLock = new ReentrantLock();
+
+	class CachedBlock {
+		final long nr;
+		final byte[] data;
+		volatile boolean referenced = true;
+		boolean dirty = false;
+		boolean loaded = false;
+		boolean evicted = false;
+		int slot;
+
+		CachedBlock(long nr, byte[] data) {
+			this.nr = nr;
+			this.data = data;
+		}
+	}
+
+	BlockCache(FileChannel blockdev, int capacity, int blocksize) {
+		this.blockdev = blockdev;
+		this.blocksize = blocksize;
+		this.table = new ConcurrentHashMap<Long, CachedBlock>(capacity);
+		this.clock = new CachedBlock[capacity];
+	}
+
+	int getCapacity() {
+		return clock.length;
+	}
+
+	int getBlocksize() {
+		return blocksize;
+	}
+
+	/**
+	 * Copy length bytes at offset of block nr into dst. dst's position is
+	 * advanced by length.
+	 */
+	void read(long nr, int offset, ByteBuffer dst, int length) throws IoError {
+		while (true) {
+			CachedBlock b = lookup(nr);
+			synchronized (b) {
+				if (b.evicted)
+					continue;
+				load(b);
+				dst.put(b.data, offset, length);
+				b.referenced = true;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Copy src's remaining bytes to block nr at offset and mark the block
+	 * dirty. A whole block write to an uncached block does not read the
+	 * old content from disk.
+	 */
+	void write(long nr, int offset, ByteBuffer src) throws IoError {
+		boolean wholeBlock = (offset == 0 && src.remaining() == blocksize);
+
+		while (true) {
+			CachedBlock b = lookup(nr);
+			synchronized (b) {
+				if (b.evicted)
+					continue;
+				if (!wholeBlock)
+					load(b);
+				src.get(b.data, offset, src.remaining());
+				b.loaded = true;
+				b.dirty = true;
+				b.referenced = true;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write back dirty blocks that overlap the byte range and drop them
+	 * from the cache. Used before the device is written past the cache.
+	 */
+	void invalidate(long position, long length) throws IoError {
+		long first = position / blocksize;
+		long last = (position + length - 1) / blocksize;
+
+		for (long nr=first; nr<=last; nr++) {
+			CachedBlock b = table.get(nr);
+			if (b == null)
+				continue;
+
+			clockLock.lock();
+			try {
+				evict(b);
+			} finally {
+				clockLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Write back dirty blocks that overlap the byte range. Used before the
+	 * device is read past the cache.
+	 */
+	void flush(long position, long length) throws IoError {
+		long first = position / blocksize;
+		long last = (position + length - 1) / blocksize;
+
+		for (long nr=first; nr<=last; nr++) {
+			CachedBlock b = table.get(nr);
+			if (b != null)
+				writeBack(b);
+		}
+	}
+
+	/**
+	 * Write back all dirty blocks
+	 */
+	void flush() throws IoError {
+		for (CachedBlock b : table.values()) {
+			writeBack(b);
+		}
+	}
+
+	/**
+	 * Write back all dirty blocks and empty the cache
+	 */
+	void clear() throws IoError {
+		clockLock.lock();
+		try {
+			for (CachedBlock b : clock) {
+				if (b != null)
+					evict(b);
+			}
+		} finally {
+			clockLock.unlock();
+		}
+	}
+
+	boolean contains(long nr) {
+		return table.containsKey(nr);
+	}
+
+	/**
+	 * Find block nr, inserting an empty entry if it is not cached. The
+	 * caller loads the content with #load() under the block's monitor.
+	 */
+	private CachedBlock lookup(long nr) throws IoError {
+		CachedBlock b = table.get(nr);
+		if (b != null)
+			return b;
+
+		clockLock.lock();
+		try {
+			b = table.get(nr);
+			if (b != null)
+				return b;
+
+			b = new CachedBlock(nr, new byte[blocksize]);
+			int slot = findFreeSlot();
+			b.slot = slot;
+			clock[slot] = b;
+			table.put(nr, b);
+			return b;
+		} finally {
+			clockLock.unlock();
+		}
+	}
+
+	/** Must hold the monitor of b */
+	private void load(CachedBlock b) throws IoError {
+		assert Thread.holdsLock(b);
+
+		if (!b.loaded) {
+			readFromDevice(b.nr, b.data);
+			b.loaded = true;
+		}
+	}
+
+	/**
+	 * Advance the clock hand until an empty or unreferenced slot is found.
+	 * Referenced blocks get a second chance. Must hold clockLock.
+	 */
+	private int findFreeSlot() throws IoError {
+		assert clockLock.isHeldByCurrentThread();
+
+		while (true) {
+			int slot = hand;
+			hand = (hand + 1) % clock.length;
+
+			CachedBlock victim = clock[slot];
+			if (victim == null)
+				return slot;
+
+			if (victim.referenced) {
+				victim.referenced = false;
+			} else {
+				evict(victim);
+				return slot;
+			}
+		}
+	}
+
+	/** Must hold clockLock */
+	private void evict(CachedBlock b) throws IoError {
+		synchronized (b) {
+			if (b.evicted)
+				return;
+			if (b.dirty)
+				writeToDevice(b.nr, b.data);
+			b.dirty = false;
+			b.evicted = true;
+		}
+		table.remove(b.nr, b);
+		if (clock[b.slot] == b)
+			clock[b.slot] = null;
+	}
+
+	private void writeBack(CachedBlock b) throws IoError {
+		synchronized (b) {
+			if (b.dirty && !b.evicted) {
+				writeToDevice(b.nr, b.data);
+				b.dirty = false;
+			}
+		}
+	}
+
+	private void readFromDevice(long nr, byte[] data) throws IoError {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		try {
+			blockdev.read(buf, nr * blocksize);
+		} catch (IOException e) {
+			throw new IoError(e.getMessage());
+		}
+	}
+
+	private void writeToDevice(long nr, byte[] data) throws IoError {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		try {
+			blockdev.write(buf, nr * blocksize);
+		} catch (IOException e) {
+			throw new IoError(e.getMessage());
+		}
+	}
+}
@@ -61,6 +61,8 @@ public class BlockGroupAccess {
 
 			groupCount -= groupsPerBlock;
 		}
+
+		superblock.initGroupTotals();
 	}
 
 	public void syncDescriptors() throws IoError {
@@ -20,6 +20,7 @@
 package jext2;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
 import jext2.exceptions.IoError;
 
@@ -35,9 +36,12 @@ public class BlockGroupDescriptor extends PartialBlock {
 	private long inodeTable;
 
 
-	private int freeBlocksCount;
-	private int freeInodesCount;
-	private int usedDirsCount;
+	private volatile int freeBlocksCount;
+	private volatile int freeInodesCount;
+	private volatile int usedDirsCount;
+
+	/** serializes allocation and freeing of blocks and inodes in this group */
+	private ReentrantLock allocationLock = new ReentrantLock();
 
 	private int blockGroup = -1;
 
@@ -66,13 +70,64 @@ public class BlockGroupDescriptor extends PartialBlock {
 		this.blockGroup = blockGroup;
 	}
 	public void setFreeBlocksCount(int freeBlocksCount) {
-		this.freeBlocksCount = freeBlocksCount;
+		allocationLock.lock();
+		try {
+			addFreeBlocks(freeBlocksCount - this.freeBlocksCount);
+		} finally {
+			allocationLock.unlock();
+		}
 	}
 	public void setFreeInodesCount(int freeInodesCount) {
-		this.freeInodesCount = freeInodesCount;
+		allocationLock.lock();
+		try {
+			addFreeInodes(freeInodesCount - this.freeInodesCount);
+		} finally {
+			allocationLock.unlock();
+		}
 	}
 	public void setUsedDirsCount(int usedDirsCount) {
-		this.usedDirsCount = usedDirsCount;
+		allocationLock.lock();
+		try {
+			addUsedDirs(usedDirsCount - this.usedDirsCount);
+		} finally {
+			allocationLock.unlock();
+		}
+	}
+
+	/**
+	 * Lock the group for changes to its bitmaps and counters. Allocations
+	 * in different groups can proceed in parallel.
+	 */
+	public void lockAllocation() {
+		allocationLock.lock();
+	}
+
+	public void unlockAllocation() {
+		allocationLock.unlock();
+	}
+
+	/*
+	 * Counter changes are added to the running totals of the superblock
+	 */
+	public void addFreeBlocks(int amount) {
+		allocationLock.lock();
+		freeBlocksCount += amount;
+		allocationLock.unlock();
+		superblock.addGroupCounters(amount, 0, 0);
+	}
+
+	public void addFreeInodes(int amount) {
+		allocationLock.lock();
+		freeInodesCount += amount;
+		allocationLock.unlock();
+		superblock.addGroupCounters(0, amount, 0);
+	}
+
+	public void addUsedDirs(int amount) {
+		allocationLock.lock();
+		usedDirsCount += amount;
+		allocationLock.unlock();
+		superblock.addGroupCounters(0, 0, amount);
 	}
 	public final void setBlockBitmap(long blockBitmap) {
 		this.blockBitmap = blockBitmap;
@@ -21,9 +21,13 @@ package jext2;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
@@ -42,6 +46,7 @@ public class DataBlockAccess {
 	protected static BlockAccess blocks = BlockAccess.getInstance();
 	protected static BlockGroupAccess blockGroups = BlockGroupAccess.getInstance();
 	protected static BitmapAccess bitmaps = BitmapAccess.getInstance();
+	protected static FreeBlockIndex freeBlockIndex = FreeBlockIndex.getInstance();
 	protected DataInode inode = null;
 
 	/**
@@ -59,6 +64,29 @@ public class DataBlockAccess {
 	private long lastAllocLogicalBlock = 0;
 	private long lastAllocPhysicalBlock = 0;
 
+	/** size of the block reservation window of an inode */
+	static final int RESERVATION_BLOCKS = 64;
+
+	/*
+	 * Reservation window: blocks taken from the free block index for this
+	 * inode but not yet marked in the bitmap. Without index the window is a
+	 * run of zero bits found in the bitmap that other inodes may still take.
+	 * Blocks are handed out from reservationStart on. Changed under the
+	 * hierarchyLock.
+	 */
+	private long reservationOrigin = 0;
+	private long reservationStart = 0;
+	private long reservationEnd = 0;
+
+	/** free blocks reserved for the delayed data of the inode */
+	private AtomicLong delayedBlocks = new AtomicLong(0);
+
+	/** indirection blocks written since the last #flushIndirectBlocks() */
+	private Set<Long> dirtyIndirectBlocks = Collections.synchronizedSet(new HashSet<Long>());
+
+	/** resolved logical to physical runs. Changed under the hierarchyLock */
+	private ExtentCache extents = new ExtentCache();
+
 	/** number of pointers in indirection block */
 	private static int ptrs = superblock.getAddressesPerBlock();
 
@@ -144,6 +172,22 @@ public class DataBlockAccess {
 		assert hierarchyLock.getReadHoldCount() == 0;
 	}
 
+	/**
+	 * Write the indirection blocks changed by this inode back from the
+	 * block cache
+	 */
+	public void flushIndirectBlocks() throws IoError {
+		Long[] nrs;
+		synchronized (dirtyIndirectBlocks) {
+			nrs = dirtyIndirectBlocks.toArray(new Long[0]);
+			dirtyIndirectBlocks.clear();
+		}
+
+		for (long nr : nrs) {
+			blocks.flush(nr);
+		}
+	}
+
 	@NotThreadSafe(useLock=true)
 	public DataBlockIterator iterateBlocks() {
 		return new DataBlockIterator(inode);
@@ -306,20 +350,22 @@ public class DataBlockAccess {
 		LinkedList<Long> result = new LinkedList<Long>();
 
 		try {
-			long parent = allocateBlock(goal);
+			long parent = allocateDataBlock(goal);
 			result.addLast(parent);
 
 			if (parent > 0) {
 				for (n=1; n < num; n++) {
 					/* allocate the next block */
-					long nr = allocateBlock(parent);
+					long nr = allocateDataBlock(parent);
 					if (nr > 0) {
 						result.addLast(nr);
 
+						/* offsets of the existing part of the chain come first */
 						ByteBuffer buf = ByteBuffer.allocate(superblock.getBlocksize());
-						Ext2fsDataTypes.putLE32U(buf, nr, offsets[n]*4);
+						Ext2fsDataTypes.putLE32U(buf, nr, offsets[blockNrs.length + n]*4);
 						buf.rewind();
 						blocks.write(parent, buf);
+						dirtyIndirectBlocks.add(parent);
 					} else {
 						break;
 					}
@@ -328,6 +374,9 @@ public class DataBlockAccess {
 				}
 			}
 		} catch (NoSpaceLeftOnDevice e) {
+			/* freeBlocks takes them off inode.blocks, but they were never added */
+			inode.setBlocks(inode.getBlocks() +
+					result.size() * (superblock.getBlocksize()/ 512));
 			for (long nr : result) {
 				freeBlocks(new long[] {nr});
 			}
@@ -360,8 +409,11 @@ public class DataBlockAccess {
 					offsets[existDepth]*4);
 			buf.rewind();
 			blocks.write(blockNrs[existDepth-1], buf);
+			dirtyIndirectBlocks.add(blockNrs[existDepth-1]);
 		}
 
+		extents.invalidate(logicalBlock);
+
 		lastAllocLogicalBlock = logicalBlock;
 		lastAllocPhysicalBlock = newBlockNrs.getLast().intValue();
 
@@ -392,7 +444,7 @@ public class DataBlockAccess {
 
 	/**
 	 * Get up to maxBlocks block numbers for the logical block number. Allocate new blocks if
-	 * necessary. In case of block allocation only one is blockNr returned.
+	 * necessary. In case of block allocation the returned blocks are all newly allocated.
 	 * @see    getBlocksAllocate
 	 * @param  fileBlockNr  logical block address
 	 * @param  maxBlocks    maximum blocks returned
@@ -429,98 +481,594 @@ public class DataBlockAccess {
 		if (fileBlockNr < 0 || maxBlocks < 1)
 			throw new IllegalArgumentException();
 
+		hierarchyLock.readLock().lock();
+
+		LinkedList<Long> result = lookupBlocks(fileBlockNr, maxBlocks);
+		if (result != null || !create) {
+			/* found or plain lookup mode */
+			assert hierarchyLock.getReadHoldCount() == 1 : "Returning without holding lock";
+			return result;
+		}
+
+		hierarchyLock.readLock().unlock();
+
+		/* Okay, we need to do block allocation. */
+		hierarchyLock.writeLock().lock();
+
+		try {
+			/* The branch may have changed while no lock was held */
+			int[] offsets = blockToPath(fileBlockNr);
+			long[] blockNrs = getBranch(offsets);
+			int depth = offsets.length;
+			int existDepth = blockNrs.length;
+
+			if (depth == existDepth) {
+				result = new LinkedList<Long>();
+				result.add(blockNrs[depth-1]);
+			} else {
+				result = allocateBlocks(fileBlockNr, maxBlocks, offsets, blockNrs);
+			}
+			hierarchyLock.readLock().lock();
+		} finally {
+			hierarchyLock.writeLock().unlock();
+		}
 
+		/* Again return with an open read lock */
+		assert hierarchyLock.getReadHoldCount() == 1 : "Returning without holding lock";
+		return result;
+	}
+
+	/**
+	 * Get up to maxBlocks physically contiguous block numbers for the logical
+	 * block number. Must hold the hierarchy lock.
+	 * @return list of block nrs or null if the block does not exist
+	 */
+	@NotThreadSafe(useLock=true)
+	private LinkedList<Long> lookupBlocks(long fileBlockNr, long maxBlocks)
+			throws JExt2Exception, FileTooLarge {
 		LinkedList<Long> result = new LinkedList<Long>();
-		int[] offsets;
-		long[] blockNrs;
-		int depth;
-		int existDepth;
 
-		hierarchyLock.readLock().lock();
+		/* Cached run, no need to walk the indirection chain */
+		ExtentCache.Extent extent = extents.lookup(fileBlockNr);
+		if (extent != null) {
+			long offset = fileBlockNr - extent.logical;
+			long count = Math.min(maxBlocks, extent.length - offset);
+			for (long i=0; i<count; i++) {
+				result.addLast(extent.physical + offset + i);
+			}
+			return result;
+		}
+
+		int[] offsets = blockToPath(fileBlockNr);
+		int depth = offsets.length;
+
+		long[] blockNrs = getBranch(offsets);
+		int existDepth = blockNrs.length;
+
+		if (depth != existDepth)
+			return null;
 
-		offsets = blockToPath(fileBlockNr);
-		depth = offsets.length;
+		long firstBlockNr = blockNrs[depth-1];
+		result.addFirst(firstBlockNr);
 
-		blockNrs = getBranch(offsets);
-		existDepth = blockNrs.length;
+		long blocksToBoundary = 0;
+		if (depth >= 2) /* indirect blocks */
+			blocksToBoundary =
+			superblock.getAddressesPerBlock() - offsets[depth-1] - 1;
+		else /* direct blocks */
+			blocksToBoundary =
+			Constants.EXT2_NDIR_BLOCKS - offsets[0] - 1;
 
-		/* Simplest case - block found, no allocation needed */
-		if (depth == existDepth) {
-			long firstBlockNr = blockNrs[depth-1];
-			result.addFirst(firstBlockNr);
+		int count = 1;
+		while(count < maxBlocks && count <= blocksToBoundary) {
 
-			long blocksToBoundary = 0;
+			long nextByNumber = firstBlockNr + count;
+			long nextOnDisk = -1;
 			if (depth >= 2) /* indirect blocks */
-				blocksToBoundary =
-				superblock.getAddressesPerBlock() - offsets[depth-1] - 1;
+				nextOnDisk = blocks.readBlockNumberFromBlock(
+						blockNrs[depth-2], offsets[depth-1] + count);
 			else /* direct blocks */
-				blocksToBoundary =
-				Constants.EXT2_NDIR_BLOCKS - offsets[0] - 1;
-
-			int count = 1;
-			while(count < maxBlocks && count <= blocksToBoundary) {
-
-				long nextByNumber = firstBlockNr + count;
-				long nextOnDisk = -1;
-				if (depth >= 2) /* indirect blocks */
-					nextOnDisk = blocks.readBlockNumberFromBlock(
-							blockNrs[depth-2], offsets[depth-1] + count);
-				else /* direct blocks */
-					nextOnDisk = inode.getBlock()[offsets[0] + count];
-
-				/* check if next neighbor block belongs to inode */
-				if (nextByNumber == nextOnDisk) {
-					result.addLast(nextByNumber);
-					count++;
-				} else {
-					break;
+				nextOnDisk = inode.getBlock()[offsets[0] + count];
+
+			/* check if next neighbor block belongs to inode */
+			if (nextByNumber == nextOnDisk) {
+				result.addLast(nextByNumber);
+				count++;
+			} else {
+				break;
+			}
+		}
+		extents.add(fileBlockNr, firstBlockNr, count);
+		return result;
+	}
+
+	/**
+	 * Allocate the missing branch for fileBlockNr and up to maxBlocks-1
+	 * following data blocks that live in the same indirection block. Only
+	 * blocks that continue the run physically are allocated. Must hold the
+	 * hierarchy write lock.
+	 * @return list of newly allocated, physically contiguous block nrs
+	 */
+	@NotThreadSafe(useLock=true)
+	private LinkedList<Long> allocateBlocks(long fileBlockNr, long maxBlocks,
+			int[] offsets, long[] blockNrs) throws JExt2Exception, NoSpaceLeftOnDevice {
+		int depth = offsets.length;
+		int existDepth = blockNrs.length;
+
+		long goal = findGoal(fileBlockNr, blockNrs, offsets);
+		LinkedList<Long> newBlockNrs = allocBranch(depth - existDepth, goal, offsets, blockNrs);
+		spliceBranch(fileBlockNr, offsets, blockNrs, newBlockNrs);
+
+		LinkedList<Long> result = new LinkedList<Long>();
+		result.add(newBlockNrs.getLast());
+
+		long blocksToBoundary;
+		long indirectBlock = 0;
+		ByteBuffer indirect = null;
+		if (depth >= 2) { /* indirect blocks */
+			blocksToBoundary = superblock.getAddressesPerBlock() - offsets[depth-1] - 1;
+			if (depth - 2 < existDepth)
+				indirectBlock = blockNrs[depth-2];
+			else
+				indirectBlock = newBlockNrs.get(depth - 2 - existDepth);
+			indirect = blocks.read(indirectBlock);
+		} else { /* direct blocks */
+			blocksToBoundary = Constants.EXT2_NDIR_BLOCKS - offsets[0] - 1;
+		}
+
+		long last = result.getLast();
+		while (result.size() < maxBlocks && result.size() <= blocksToBoundary) {
+			int slot = offsets[depth-1] + result.size();
+
+			boolean slotUsed;
+			if (depth >= 2)
+				slotUsed = Ext2fsDataTypes.getLE32U(indirect, slot*4) != 0;
+			else
+				slotUsed = inode.getBlock()[slot] != 0;
+			if (slotUsed)
+				break;
+
+			long nr = allocateBlockAt(last + 1);
+			if (nr < 0)
+				break;
+
+			if (depth >= 2)
+				Ext2fsDataTypes.putLE32U(indirect, nr, slot*4);
+			else
+				inode.getBlock()[slot] = nr;
+
+			result.addLast(nr);
+			last = nr;
+		}
+
+		if (result.size() > 1) {
+			if (depth >= 2) {
+				indirect.rewind();
+				blocks.write(indirectBlock, indirect);
+				dirtyIndirectBlocks.add(indirectBlock);
+			}
+
+			lastAllocLogicalBlock = fileBlockNr + result.size() - 1;
+			lastAllocPhysicalBlock = last;
+			inode.setBlocks(inode.getBlocks() +
+					(result.size() - 1) * (superblock.getBlocksize()/ 512));
+		}
+
+		extents.add(fileBlockNr, result.getFirst(), result.size());
+
+		/* only regular files keep their window for the next write */
+		if (!inode.isRegularFile())
+			discardReservation();
+
+		return result;
+	}
+
+	/**
+	 * Allocate exactly the block nr if it is free.
+	 * @return nr or -1 if the block is in use or there is no space left
+	 */
+	@NotThreadSafe(useLock=true)
+	private long allocateBlockAt(long nr) throws JExt2Exception {
+		if (nr >= superblock.getBlocksCount())
+			return -1;
+
+		BlockGroupDescriptor descr = blockGroups.getGroupDescriptor(Calculations.groupOfBlk(nr));
+		if (!descr.isValidDataBlockNr(nr))
+			return -1;
+
+		if (!mayAllocate())
+			return -1;
+
+		if (freeBlockIndex.isBuilt()) {
+			if (reservationStart == reservationEnd && !reserveWindowAt(nr))
+				return -1;
+			if (nr != reservationStart)
+				return -1;
+			reservationStart++;
+			if (!markBlockUsed(nr, false))
+				return -1;
+			claimDelayedBlock();
+			return nr;
+		}
+
+		Bitmap bitmap = bitmaps.openDataBitmap(descr);
+		boolean used = bitmap.isSet(Calculations.groupIndexOfBlk(nr));
+		bitmaps.closeBitmap(bitmap);
+		if (used)
+			return -1;
+
+		long allocated;
+		try {
+			allocated = allocateBlock(nr);
+		} catch (NoSpaceLeftOnDevice e) {
+			return -1;
+		}
+
+		if (allocated != nr) { /* lost a race for the block */
+			inode.setBlocks(inode.getBlocks() + superblock.getBlocksize()/ 512);
+			freeBlocks(new long[] {allocated});
+			return -1;
+		}
+		claimDelayedBlock();
+		return nr;
+	}
+
+	/**
+	 * Allocate a block near goal out of the reservation window of this inode.
+	 * A new window is reserved if goal is not in the current one. The blocks
+	 * reserved for root are never handed out, see #mayAllocate().
+	 */
+	@NotThreadSafe(useLock=true)
+	private long allocateDataBlock(long goal) throws JExt2Exception, NoSpaceLeftOnDevice {
+		if (!mayAllocate()) {
+			throw new NoSpaceLeftOnDevice();
+		}
+
+		long nr = -1;
+		if (goal < reservationOrigin || goal >= reservationEnd
+				|| reservationStart == reservationEnd) {
+			discardReservation();
+			if (!reserveWindowAt(goal) && !reserveWindowNear(goal))
+				nr = allocateBlock(goal);
+		}
+
+		if (nr < 0)
+			nr = useReservedBlock();
+		if (nr < 0)
+			nr = allocateBlock(goal);
+
+		claimDelayedBlock();
+		return nr;
+	}
+
+	/**
+	 * Test if the inode may allocate another block. Blocks reserved for its
+	 * delayed data can always be used, other blocks only while the blocks
+	 * reserved for root and for delayed data of other inodes are left.
+	 */
+	private boolean mayAllocate() {
+		return delayedBlocks.get() > 0 || superblock.hasFreeBlocks();
+	}
+
+	/**
+	 * Count an allocated block against the blocks reserved for delayed data
+	 */
+	private void claimDelayedBlock() {
+		while (true) {
+			long reserved = delayedBlocks.get();
+			if (reserved == 0)
+				return;
+			if (delayedBlocks.compareAndSet(reserved, reserved - 1)) {
+				superblock.releaseDelayedBlocks(1);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reserve count free blocks for data written in delayed allocation mode.
+	 * The reservation is used up by the allocations of the write back.
+	 * @throws NoSpaceLeftOnDevice if there are not enough free blocks
+	 */
+	void reserveDelayedBlocks(long count) throws NoSpaceLeftOnDevice {
+		if (count == 0)
+			return;
+		if (!superblock.reserveDelayedBlocks(count))
+			throw new NoSpaceLeftOnDevice();
+		delayedBlocks.addAndGet(count);
+	}
+
+	/**
+	 * Give back the blocks reserved for delayed data that the write back did
+	 * not use
+	 */
+	void releaseDelayedBlocks() {
+		long reserved = delayedBlocks.getAndSet(0);
+		if (reserved > 0)
+			superblock.releaseDelayedBlocks(reserved);
+	}
+
+	/**
+	 * Reserve up to RESERVATION_BLOCKS free blocks starting at goal
+	 * @return false if goal is not free
+	 */
+	@NotThreadSafe(useLock=true)
+	private boolean reserveWindowAt(long goal) throws JExt2Exception {
+		discardReservation();
+
+		long length;
+		if (freeBlockIndex.isBuilt())
+			length = freeBlockIndex.takeAt(goal, RESERVATION_BLOCKS);
+		else
+			length = freeRunAt(goal, RESERVATION_BLOCKS);
+		if (length == 0)
+			return false;
+
+		reservationOrigin = reservationStart = goal;
+		reservationEnd = goal + length;
+		return true;
+	}
+
+	/**
+	 * Reserve RESERVATION_BLOCKS contiguous free blocks near goal
+	 * @return false if there is no such run
+	 */
+	@NotThreadSafe(useLock=true)
+	private boolean reserveWindowNear(long goal) throws JExt2Exception {
+		discardReservation();
+
+		long start;
+		if (freeBlockIndex.isBuilt())
+			start = freeBlockIndex.take(goal, RESERVATION_BLOCKS);
+		else
+			start = findFreeRun(goal, RESERVATION_BLOCKS);
+		if (start < 0)
+			return false;
+
+		reservationOrigin = reservationStart = start;
+		reservationEnd = start + RESERVATION_BLOCKS;
+		return true;
+	}
+
+	/**
+	 * Number of free blocks starting at nr according to the bitmap, at most
+	 * max and not beyond the block group of nr
+	 */
+	private static long freeRunAt(long nr, int max) throws JExt2Exception {
+		if (nr < superblock.getFirstDataBlock() || nr >= superblock.getBlocksCount())
+			return 0;
+
+		BlockGroupDescriptor descr = blockGroups.getGroupDescriptor(Calculations.groupOfBlk(nr));
+		int index = Calculations.groupIndexOfBlk(nr);
+		int end = (int)Math.min(index + (long)max, groupEnd(descr));
+
+		Bitmap bitmap = bitmaps.openDataBitmap(descr);
+		try {
+			return bitmap.getNextBitPos(index, end, true) - index;
+		} finally {
+			bitmaps.closeBitmap(bitmap);
+		}
+	}
+
+	/**
+	 * Find count contiguous free blocks in the bitmaps, searching from goal
+	 * to the end of its block group and then the following groups
+	 * @return first block of the run or -1 if there is none
+	 */
+	private static long findFreeRun(long goal, int count) throws JExt2Exception {
+		if (goal < superblock.getFirstDataBlock() || goal >= superblock.getBlocksCount())
+			goal = superblock.getFirstDataBlock();
+
+		int start = Calculations.groupIndexOfBlk(goal);
+		for (BlockGroupDescriptor descr : blockGroups.iterateBlockGroups(Calculations.groupOfBlk(goal))) {
+			if (descr.getFreeBlocksCount() >= count) {
+				Bitmap bitmap = bitmaps.openDataBitmap(descr);
+				int pos;
+				try {
+					pos = bitmap.findZeroRun(start, count, groupEnd(descr));
+				} finally {
+					bitmaps.closeBitmap(bitmap);
 				}
+				if (pos >= 0)
+					return descr.firstBlock() + pos;
 			}
-			assert hierarchyLock.getReadHoldCount() == 1 : "Returning without holding lock";
-			return result;
+			start = 0;
 		}
+		return -1;
+	}
 
-		assert hierarchyLock.getReadHoldCount() == 1 : "Should have a read lock around";
+	/** number of blocks in the block group */
+	private static int groupEnd(BlockGroupDescriptor descr) {
+		return (int)Math.min(superblock.getBlocksPerGroup(),
+				superblock.getBlocksCount() - descr.firstBlock());
+	}
 
-		/* Next simple case - plain lookup mode */
-		if (!create) {
-			assert hierarchyLock.getReadHoldCount() == 1 : "Returning without holding lock";
-			return null;
+	/**
+	 * Allocate the next block of the reservation window
+	 * @return block nr or -1 if the window is used up
+	 */
+	@NotThreadSafe(useLock=true)
+	private long useReservedBlock() throws JExt2Exception {
+		while (reservationStart < reservationEnd) {
+			long nr = reservationStart++;
+			if (markBlockUsed(nr, false))
+				return nr;
 		}
+		return -1;
+	}
 
-		hierarchyLock.readLock().unlock();
+	/**
+	 * Return the unused blocks of the reservation window to the free block
+	 * index. Blocks of the window that #newBlock(long) handed to other inodes
+	 * meanwhile are used in the bitmap and stay out of the index.
+	 */
+	@NotThreadSafe(useLock=true)
+	private void discardReservation() throws JExt2Exception {
+		long start = reservationStart;
+		long end = reservationEnd;
+		reservationOrigin = reservationStart = reservationEnd = 0;
 
-		/* Okay, we need to do block allocation. */
+		if (start >= end || !freeBlockIndex.isBuilt())
+			return;
+
+		/* a window never spans block groups */
+		BlockGroupDescriptor descr = blockGroups.getGroupDescriptor(Calculations.groupOfBlk(start));
+		int first = Calculations.groupIndexOfBlk(start);
+		int last = first + (int)(end - start);
+
+		descr.lockAllocation();
+		Bitmap bitmap = bitmaps.openDataBitmap(descr);
+		try {
+			int pos = bitmap.getNextBitPos(first, last, false);
+			while (pos < last) {
+				int used = bitmap.getNextBitPos(pos, last, true);
+				freeBlockIndex.markFree(descr.firstBlock() + pos, used - pos);
+				pos = bitmap.getNextBitPos(used, last, false);
+			}
+		} finally {
+			bitmaps.closeBitmap(bitmap);
+			descr.unlockAllocation();
+		}
+	}
+
+	/**
+	 * Release the reservation window. Called when the inode is closed.
+	 */
+	public void releaseReservation() throws JExt2Exception {
 		hierarchyLock.writeLock().lock();
-		long goal = findGoal(fileBlockNr, blockNrs, offsets);
-		int count = depth - existDepth;
+		try {
+			discardReservation();
+		} finally {
+			hierarchyLock.writeLock().unlock();
+		}
+	}
 
-		LinkedList<Long> newBlockNrs = allocBranch(count, goal, offsets, blockNrs);
-		spliceBranch(fileBlockNr, offsets, blockNrs, newBlockNrs);
+	/**
+	 * Get up to maxBlocks physically contiguous blocks for the logical block
+	 * number, allocating them if the block does not exist. The result is
+	 * {physical block, length, 1 if newly allocated otherwise 0}.
+	 * Returns with the hierarchy read lock held, like getBlocksAllocate.
+	 */
+	@MustReturnLock
+	public long[] getBlockRunAllocate(long fileBlockNr, long maxBlocks)
+			throws JExt2Exception, NoSpaceLeftOnDevice, FileTooLarge {
+		if (fileBlockNr < 0 || maxBlocks < 1)
+			throw new IllegalArgumentException();
 
-		result.add(newBlockNrs.getLast());
 		hierarchyLock.readLock().lock();
-		hierarchyLock.writeLock().unlock();
 
-		/* Again return with an open read lock */
+		LinkedList<Long> found = lookupBlocks(fileBlockNr, maxBlocks);
+		if (found != null) {
+			assert hierarchyLock.getReadHoldCount() == 1 : "Returning without holding lock";
+			return new long[] { found.getFirst(), found.size(), 0 };
+		}
+
+		hierarchyLock.readLock().unlock();
+		hierarchyLock.writeLock().lock();
+
+		long[] result;
+		try {
+			int[] offsets = blockToPath(fileBlockNr);
+			long[] blockNrs = getBranch(offsets);
+
+			if (offsets.length == blockNrs.length) { /* allocated meanwhile */
+				result = new long[] { blockNrs[blockNrs.length-1], 1, 0 };
+			} else {
+				LinkedList<Long> allocated = allocateBlocks(fileBlockNr, maxBlocks, offsets, blockNrs);
+				result = new long[] { allocated.getFirst(), allocated.size(), 1 };
+			}
+			/* downgrade only on success, callers don't unlock after an exception */
+			hierarchyLock.readLock().lock();
+		} finally {
+			hierarchyLock.writeLock().unlock();
+		}
+
 		assert hierarchyLock.getReadHoldCount() == 1 : "Returning without holding lock";
 		return result;
 	}
 
+	/**
+	 * Number of logical blocks from fileBlockNr to the end of the subtree
+	 * that is missing below an incomplete branch. None of these blocks exist.
+	 */
+	private long holeLength(long fileBlockNr) throws IoError, FileTooLarge {
+		int[] offsets = blockToPath(fileBlockNr);
+		int depth = offsets.length;
+		int existDepth = getBranch(offsets).length;
+
+		long length = 1;
+		long span = 1;
+		for (int i=depth-1; i>existDepth; i--) {
+			length += (ptrs - 1 - offsets[i]) * span;
+			span *= ptrs;
+		}
+		return length;
+	}
+
+	/**
+	 * Resolve count logical blocks starting at fileBlockNr in one go. The
+	 * result is a list of runs {physical block, length}. Each run is either
+	 * physically contiguous or a hole, in which case the physical block is 0.
+	 * Returns with the hierarchy read lock held, like getBlocks.
+	 */
+	@MustReturnLock
+	public LinkedList<long[]> getBlockRuns(long fileBlockNr, long count)
+			throws JExt2Exception, FileTooLarge {
+		if (fileBlockNr < 0 || count < 1)
+			throw new IllegalArgumentException();
+
+		LinkedList<long[]> runs = new LinkedList<long[]>();
+
+		hierarchyLock.readLock().lock();
+
+		long nr = fileBlockNr;
+		long end = fileBlockNr + count;
+		while (nr < end) {
+			long physical;
+			long length;
+
+			LinkedList<Long> b = lookupBlocks(nr, end - nr);
+			if (b == null) {
+				physical = 0;
+				length = Math.min(holeLength(nr), end - nr);
+			} else {
+				physical = b.getFirst();
+				length = b.size();
+			}
+
+			long[] last = runs.peekLast();
+			if (last != null && (physical == 0) == (last[0] == 0) &&
+					(physical == 0 || last[0] + last[1] == physical)) {
+				last[1] += length;
+			} else {
+				runs.addLast(new long[] { physical, length });
+			}
+
+			nr += length;
+		}
+
+		assert hierarchyLock.getReadHoldCount() == 1 : "Returning without holding lock";
+		return runs;
+	}
+
 	/**
 	 * Try to allocate a block by looping over block groups and calling
-	 * newBlockInGroup
+	 * newBlockInGroup. Callers check for free blocks with #mayAllocate().
 	 */
 	@NotThreadSafe(useLock=true)
 	private static long newBlock(long goal) throws JExt2Exception, NoSpaceLeftOnDevice {
-		if (! superblock.hasFreeBlocks()) {
-			throw new NoSpaceLeftOnDevice();
-		}
-
 		if (goal < superblock.getFirstDataBlock() ||
 				goal >= superblock.getBlocksCount())
 			goal = superblock.getFirstDataBlock();
 
+		if (freeBlockIndex.isBuilt()) {
+			long blockNr = newBlockFromIndex(goal);
+			if (blockNr > 0)
+				return blockNr;
+			/* Reservation windows are only hints: the blocks left may all be
+			 * in windows of other inodes. Take them from the bitmaps. */
+		}
+
 		int goalGroup = Calculations.groupOfBlk(goal);
 		int start = (int) ((goal - superblock.getFirstDataBlock()) %
 				superblock.getBlocksPerGroup());
@@ -545,6 +1093,62 @@ public class DataBlockAccess {
 		throw new NoSpaceLeftOnDevice();
 	}
 
+	/**
+	 * Take the free block nearest to goal from the free block index and mark
+	 * it in the bitmap
+	 * @return block nr or -1 if the index is empty
+	 */
+	@NotThreadSafe(useLock=true)
+	private static long newBlockFromIndex(long goal) throws JExt2Exception {
+		while (true) {
+			long blockNr = freeBlockIndex.take(goal, 1);
+			if (blockNr < 0)
+				return -1;
+
+			if (markBlockUsed(blockNr, true))
+				return blockNr;
+		}
+	}
+
+	/**
+	 * Mark a block taken from the free block index or a reservation window
+	 * in the bitmap
+	 * @param  fromIndex  block was taken from the index, so a used bit means
+	 *                    that the index is out of sync
+	 * @return false if the bitmap has the block in use already
+	 */
+	@NotThreadSafe(useLock=true)
+	private static boolean markBlockUsed(long blockNr, boolean fromIndex) throws JExt2Exception {
+		BlockGroupDescriptor descr =
+				blockGroups.getGroupDescriptor(Calculations.groupOfBlk(blockNr));
+		if (!(descr.isValidDataBlockNr(blockNr))) {
+			throw new RuntimeException("Trying to allocate in system zone"
+					+ " blockNr=" + blockNr
+					+ " group=" + descr.getBlockGroup());
+		}
+
+		int index = Calculations.groupIndexOfBlk(blockNr);
+		descr.lockAllocation();
+		Bitmap bitmap = bitmaps.openDataBitmap(descr);
+		try {
+			if (bitmap.isSet(index)) {
+				/* a window block was taken by someone else, an index block
+				 * means the index is out of sync and the block stays out of it */
+				if (fromIndex)
+					Filesystem.getLogger().warning("Free block index lists used block " + blockNr);
+				return false;
+			}
+
+			bitmap.setBit(index, true);
+			bitmap.write();
+			descr.addFreeBlocks(-1);
+			return true;
+		} finally {
+			bitmaps.closeBitmap(bitmap);
+			descr.unlockAllocation();
+		}
+	}
+
 	/**
 	 * Allocate a new block. Uses a goal block to assist allocation. If
 	 * the goal is free, or there is a free block within 32 blocks of the gloal, that block is
@@ -556,11 +1160,8 @@ public class DataBlockAccess {
 	 */
 	@NotThreadSafe(useLock=true)
 	private static long allocateBlock(long goal) throws NoSpaceLeftOnDevice, JExt2Exception {
-		long blockNr = newBlock(goal);
-
 		/* Finally return pointer to allocated block or an error */
-		superblock.incrementFreeBlocksCount( -1);
-		return blockNr;
+		return newBlock(goal);
 	}
 
 	/**
@@ -572,37 +1173,42 @@ public class DataBlockAccess {
 	 */
 	@NotThreadSafe(useLock=true)
 	private static long newBlockInGroup(int start, BlockGroupDescriptor descr) throws JExt2Exception {
-		Bitmap bitmap = bitmaps.openDataBitmap(descr);
-
-		if (descr.getFreeBlocksCount() > 0) {
+		if (descr.getFreeBlocksCount() == 0) /* don't wait for the lock of a full group */
+			return -1;
 
-			int freeIndex = bitmap.getNextZeroBitPos(start);
-			if (freeIndex > 0) {
-				long blockNr = descr.firstBlock() + freeIndex;
+		descr.lockAllocation();
+		Bitmap bitmap = bitmaps.openDataBitmap(descr);
+		try {
+			if (descr.getFreeBlocksCount() > 0) {
+
+				int freeIndex = bitmap.getNextZeroBitPos(start);
+				if (freeIndex > 0) {
+					long blockNr = descr.firstBlock() + freeIndex;
+
+					/* Check to see if we are trying to allocate a system block */
+					if (!(descr.isValidDataBlockNr(blockNr))) {
+						throw new RuntimeException("Trying to allocate in system zone"
+								+ " blockNr=" + blockNr
+								+ " group=" + descr.getBlockGroup()
+								+ " index=" + freeIndex);
+					}
 
-				/* Check to see if we are trying to allocate a system block */
-				if (!(descr.isValidDataBlockNr(blockNr))) {
-					bitmaps.closeBitmap(bitmap);
-					throw new RuntimeException("Trying to allocate in system zone"
-							+ " blockNr=" + blockNr
-							+ " group=" + descr.getBlockGroup()
-							+ " index=" + freeIndex);
-				}
+					bitmap.setBit(freeIndex, true);
+					bitmap.write();
 
-				bitmap.setBit(freeIndex, true);
-				bitmap.write();
-				bitmaps.closeBitmap(bitmap);
+					descr.addFreeBlocks(-1);
 
-				descr.setFreeBlocksCount(descr.getFreeBlocksCount() - 1);
+					/* the block may be listed in the index or another inode's window */
+					freeBlockIndex.takeAt(blockNr, 1);
 
-				return Calculations.blockNrOfLocal(freeIndex, descr.getBlockGroup());
-			} else {
-				start = 0; // XXX this does not make sense :-/
+					return Calculations.blockNrOfLocal(freeIndex, descr.getBlockGroup());
+				}
 			}
+			return -1;
+		} finally {
+			bitmaps.closeBitmap(bitmap);
+			descr.unlockAllocation();
 		}
-
-		bitmaps.closeBitmap(bitmap);
-		return -1;
 	}
 
 
@@ -659,34 +1265,39 @@ public class DataBlockAccess {
 				count -= overflow;
 			}
 
-			Bitmap bitmap = bitmaps.openDataBitmap(groupDescr);
-
 			/* Check to see if we are trying to free a system block */
 			if (!(groupDescr.isValidDataBlockNr(blockNr) &&
 					groupDescr.isValidDataBlockNr(blockNr + count-1))) {
 				throw new RuntimeException("Freeing blocks in system zones");
 			}
 
-			/* Set block bits to "free" */
-			groupFreed = 0;
-			for (int i=0; i<count; i++) {
-				if (!(bitmap.isSet(groupIndex + i))) {
-					Logger log = Filesystem.getLogger();
-					log.severe(String.format("Bit allready cleared! block=%d groupIndex=%d bitmap=%s inode=%d",
-							(blockNr+i), (groupIndex+i),  bitmap.getBitStringContaining(groupIndex + i), inode.getIno()));
-				}
+			groupDescr.lockAllocation();
+			Bitmap bitmap = bitmaps.openDataBitmap(groupDescr);
+			try {
+				/* Set block bits to "free" */
+				groupFreed = 0;
+				for (int i=0; i<count; i++) {
+					if (!(bitmap.isSet(groupIndex + i))) {
+						Logger log = Filesystem.getLogger();
+						log.severe(String.format("Bit allready cleared! block=%d groupIndex=%d bitmap=%s inode=%d",
+								(blockNr+i), (groupIndex+i),  bitmap.getBitStringContaining(groupIndex + i), inode.getIno()));
+					}
 
-				if (groupIndex + i > superblock.getBlocksPerGroup()) {
-					groupFreed++;
-				} else {
-					groupFreed++;
-					bitmap.setBit(groupIndex + i, false);
+					if (groupIndex + i > superblock.getBlocksPerGroup()) {
+						groupFreed++;
+					} else {
+						groupFreed++;
+						bitmap.setBit(groupIndex + i, false);
+					}
 				}
-			}
-			bitmap.write();
-			bitmaps.closeBitmap(bitmap);
+				bitmap.write();
+				freeBlockIndex.markFree(blockNr, count);
 
-			groupDescr.setFreeBlocksCount(groupDescr.getFreeBlocksCount() + groupFreed);
+				groupDescr.addFreeBlocks(groupFreed);
+			} finally {
+				bitmaps.closeBitmap(bitmap);
+				groupDescr.unlockAllocation();
+			}
 			freed += groupFreed;
 
 			blockNr += count;
@@ -696,7 +1307,6 @@ public class DataBlockAccess {
 
 		inode.setBlocks(inode.getBlocks() - freed * (superblock.getBlocksize()/ 512));
 		inode.setModificationTime(new Date());
-		superblock.incrementFreeBlocksCount(freed);
 	}
 
 	/**
@@ -824,6 +1434,8 @@ public class DataBlockAccess {
 		int blocksize = superblock.getBlocksize();
 		long blockToKill = (toSize + blocksize-1) / blocksize;
 
+		extents.invalidateFrom(blockToKill);
+
 		int[] offsets = blockToPath(blockToKill);
 		int depth = offsets.length;
 
@@ -848,6 +1460,7 @@ public class DataBlockAccess {
 
 			long[] blockNrs = blocks.readBlockNrsFromBlock(nr, start, ptrs-1);
 			blocks.zeroOut(nr, start*4, (ptrs-1)*4);
+			dirtyIndirectBlocks.add(nr);
 			freeBranches((existDepth-2)-i, blockNrs);
 		}
 		directBlocks[offsets[0]] = 0;
@@ -22,7 +22,6 @@ package jext2;
 import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.LinkedList;
-import java.util.logging.Logger;
 
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 
@@ -79,6 +78,26 @@ public class DataInode extends Inode {
 	 * @throws IoError
 	 */
 	public ByteBuffer readData(int size, long fileOffset) throws JExt2Exception, FileTooLarge {
+		ByteBuffer buf = readDataAhead(size, fileOffset);
+		if (buf != null)
+			updateAccessTime();
+		return buf;
+	}
+
+	/**
+	 * Read data without updating the access time, for readahead. The caller
+	 * calls #updateAccessTime() once the data is returned to a reader.
+	 * @see #readData(int, long)
+	 */
+	public ByteBuffer readDataAhead(int size, long fileOffset) throws JExt2Exception, FileTooLarge {
+		return readStoredData(size, fileOffset);
+	}
+
+	/**
+	 * Read data stored on disk without updating the access time
+	 * @see #readData(int, long)
+	 */
+	protected ByteBuffer readStoredData(int size, long fileOffset) throws JExt2Exception, FileTooLarge {
 		/* Returning null may break things somewhere..
 		 * Zero length buffer breaks something in jlowfuse's c code */
 		if (fileOffset >= getSize()) {
@@ -98,85 +117,41 @@ public class DataInode extends Inode {
 
 		int blocksize = superblock.getBlocksize();
 
-		long i = 0;
 		long firstBlock = fileOffset / blocksize;
-		long offset = fileOffset % blocksize;
+		int offset = (int)(fileOffset % blocksize);
+		long blockCount = (offset + (long)size + blocksize - 1) / blocksize;
 
 		/*
-		 * just as size may be larger than the inode's data, the number of blocks
-		 * may also be.
+		 * Resolve the whole range first. Each data run is read with a single
+		 * call, physically adjacent runs are coalesced by getBlockRuns.
+		 *
+		 * Note on the sparse file support:
+		 * Holes are runs with physical block 0. The buffer is freshly
+		 * allocated and thus already zeroed, so holes are skipped in one step.
 		 */
-		long approxBlocks = (size / blocksize) + 1;
-		long maxBlocks = this.getBlocks()/(superblock.getBlocksize()/512);
-		if (approxBlocks > maxBlocks)
-			approxBlocks = maxBlocks;
-
-		while (i < approxBlocks) {
-			long start = firstBlock + i;
-			long stop = firstBlock + approxBlocks;
-
-			LinkedList<Long> b = accessData().getBlocks(start, stop);
-			int blocksRead;
-
-			/*
-			 * Note on the sparse file support:
-			 * getBlocks will return null if there is no data block for this
-			 * logical address. So just move the position count blocks forward.
-			 */
-
-			if (b == null) { /* hole */
-				blocksRead = 1;
-
-				int unboundedLimit = buf.position() + blocksize;
-				int limit = Math.min(unboundedLimit, buf.capacity());
+		LinkedList<long[]> runs = accessData().getBlockRuns(firstBlock, blockCount);
+		try {
+			for (long[] run : runs) {
+				if (buf.position() == buf.capacity())
+					break;
 
-				assert limit <= buf.capacity() :
-					"New position, limit " + limit + " is beyond buffer's capacity, " + buf;
+				long runBytes = run[1] * blocksize - offset;
+				int limit = (int) Math.min(buf.position() + runBytes, buf.capacity());
 
 				buf.limit(limit);
+				if (run[0] != 0) { /* blocks */
+					blockAccess.readToBufferUnsynchronized(run[0] * blocksize + offset, buf);
+				}
 				buf.position(limit);
 
-				assert buf.limit() == buf.position();
-
-			} else { /* blocks */
-				blocksRead = b.size();
-
-				long pos = b.getFirst() * blocksize + offset;
-				int unboundedLimit = buf.position() + blocksRead * blocksize;
-				int limit = Math.min(unboundedLimit, buf.capacity());
-
-				assert limit <= buf.capacity() :
-					"New limit " + limit + " is beyond buffer's capacity, " + buf;
-
-				buf.limit(limit);
-				blockAccess.readToBufferUnsynchronized(pos, buf);
+				offset = 0;
 			}
-
-			i += blocksRead;
-			offset = 0;
-
-			/* This should be removed soon. IllegalMonitorStateException happen
-			 * occasionally for unknown reasons.
-			 */
-			try {
-				accessData().getHierarchyLock().readLock().unlock();
-			} catch (IllegalMonitorStateException e) {
-				Logger log = Filesystem.getLogger();
-				log.warning("IllegalMonitorStateException encountered in readData, inode=" + this);
-				log.warning(String.format("context for exception: blocks=%s i=%d approxBlocks=%d off=%d buf=%s readlock=%s lock.readlock.holds=%s",
-													b, i, approxBlocks, fileOffset, buf, accessData().getHierarchyLock(), accessData().getHierarchyLock().getReadHoldCount()));
-			}
-
-			if (buf.capacity() == buf.limit())
-				break;
+		} finally {
+			accessData().unlockHierarchyChanges();
 		}
 
-		assert buf.position() == buf.limit() : "Buffer wasn't filled completely";
-		assert buf.limit() == size : "Read buffer size does not match request size";
-
-        Date currentTime = new Date();
-        setAccessTime(currentTime);
-        sync();
+		assert buf.position() == buf.capacity() : "Buffer wasn't filled completely";
+		assert buf.capacity() == size : "Read buffer size does not match request size";
 
         //if ((fileOffset + buf.limit()) > getSize())
 		//	buf.limit((int)(getSize()-fileOffset));
@@ -186,17 +161,57 @@ public class DataInode extends Inode {
 	}
 
 	/**
-	 * Write data in buffer to disk. This works best when whole blocks which
-	 * are a multiple of blocksize in size are written. Partial blocks are
-	 * written by first reading the block and then writing the new data
-	 * to that buffer than write that new buffer to disk.
+	 * Make the inode, its indirection blocks and all data written so far
+	 * durable. The block cache is only flushed for blocks of this inode.
+	 */
+	public void force() throws JExt2Exception {
+		sync();
+		blockAccess.flush(getBlockNr());
+		accessData().flushIndirectBlocks();
+		blockAccess.force();
+	}
+
+	/**
+	 * Update atime after a read as configured by Filesystem#getAccessTimeMode
+	 */
+	public void updateAccessTime() throws IoError {
+		Date currentTime = new Date();
+		Date accessTime = getAccessTime();
+
+		switch (Filesystem.getAccessTimeMode()) {
+		case NOATIME:
+			break;
+		case RELATIME:
+			if (!accessTime.after(getModificationTime()) ||
+					!accessTime.after(getStatusChangeTime()) ||
+					currentTime.getTime() - accessTime.getTime() >= AccessTimeMode.RELATIME_INTERVAL) {
+				setAccessTime(currentTime);
+				sync();
+			}
+			break;
+		case LAZYTIME:
+			setAccessTime(currentTime);
+			InodeAccess.getInstance().markAccessTimeDirty(this);
+			break;
+		default:
+			setAccessTime(currentTime);
+			sync();
+		}
+	}
+
+	/**
+	 * Write data in buffer to disk. Runs of contiguous blocks are allocated
+	 * and written at once. Partial blocks are written by first reading the
+	 * block and then writing the new data to that buffer than write that new
+	 * buffer to disk. Newly allocated blocks and blocks past the end of file
+	 * are not read, their unwritten part is zero.
 	 * @throws NoSpaceLeftOnDevice
 	 * @throws FileTooLarge
 	 */
 	public int writeData(byte[] rawBytes, long offset) throws JExt2Exception, NoSpaceLeftOnDevice, FileTooLarge {
 		/*
 		 * Note on sparse file support:
-		 * getBlocksAllocate does not care if there are holes. Just write as much
+		 * getBlockRunAllocate does not care if there are holes. Just write as much
 		 * blocks as the buffer requires at the desired location an set inode.size
 		 * accordingly.
 		 */
@@ -204,55 +219,84 @@ public class DataInode extends Inode {
 		ByteBuffer buf = ByteBuffer.wrap(rawBytes);
 		int blocksize = superblock.getBlocksize();
 		long start = offset/blocksize;
-		long end = (buf.capacity()+blocksize)/blocksize + start;
+		long end = (offset + buf.capacity() + blocksize - 1)/blocksize;
 		int startOff = (int)(offset%blocksize);
+		long size = getSize();
+
+		while (start < end && buf.position() < buf.capacity()) {
+			long[] run;
+			try {
+				run = accessData().getBlockRunAllocate(start, end - start);
+			} catch (NoSpaceLeftOnDevice e) {
+				/* the runs written so far are part of the file */
+				if (buf.position() > 0)
+					updateAfterWrite(offset + buf.position());
+				throw e;
+			}
+			try {
+				long nr = run[0];
+				long count = run[1];
+				boolean allocated = (run[2] != 0);
 
-		if (startOff > 0)
-			end += 1;
+				for (long i=0; i<count && buf.position() < buf.capacity(); ) {
+					int bytesLeft = buf.capacity() - buf.position();
 
-		while (start < end) {
-			LinkedList<Long> blockNrs = accessData().getBlocksAllocate(start, 1);
-			int bytesLeft = buf.capacity() - buf.position();
+					if (bytesLeft < blocksize || startOff > 0) { /* write partial block */
+						ByteBuffer onDisk;
+						if (allocated || (start + i) * blocksize >= size)
+							onDisk = ByteBuffer.allocate(blocksize);
+						else
+							onDisk = blockAccess.read(nr + i);
 
-			if (bytesLeft < blocksize || startOff > 0) { /* write partial block */
-				ByteBuffer onDisk = blockAccess.read(blockNrs.getFirst());
+						onDisk.position(startOff);
 
-				onDisk.position(startOff);
+						assert onDisk.limit() == blocksize;
 
-				assert onDisk.limit() == blocksize;
+						buf.limit(buf.position() + Math.min(bytesLeft, onDisk.remaining()));
 
-				buf.limit(buf.position() + Math.min(bytesLeft, onDisk.remaining()));
+						onDisk.put(buf);
 
-				onDisk.put(buf);
+						onDisk.rewind();
+						blockAccess.writeFromBufferUnsynchronized((nr + i) * blocksize, onDisk);
 
-				onDisk.rewind();
-				blockAccess.writeFromBufferUnsynchronized((blockNrs.getFirst() & 0xffffffff) * blocksize, onDisk);
-			} else { /* write whole block */
-				buf.limit(buf.position() + blocksize);
+						i += 1;
+						startOff = 0;
+					} else { /* write whole blocks in one go */
+						long wholeBlocks = Math.min(count - i, bytesLeft / blocksize);
+						buf.limit(buf.position() + (int)(wholeBlocks * blocksize));
 
-				blockAccess.writeFromBufferUnsynchronized(
-						(blockNrs.getFirst() & 0xffffffff) * blocksize, buf);
-			}
+						blockAccess.writeFromBufferUnsynchronized((nr + i) * blocksize, buf);
 
-			start += 1;
-			startOff = 0;
-			accessData().unlockHierarchyChanges();
+						i += wholeBlocks;
+					}
+				}
 
+				start += count;
+			} finally {
+				accessData().unlockHierarchyChanges();
+			}
 		}
 		int written = buf.position();
 		assert written == buf.capacity();
 
+		updateAfterWrite(offset + written);
+
+		return written;
+	}
+
+	/**
+	 * Set mtime and grow the file to end after data was written
+	 */
+	private void updateAfterWrite(long end) throws IoError {
 		Date currentTime = new Date();
         setModificationTime(currentTime);
 
 		/* increase inode.size if we grew the file */
-		if (offset + written > getSize()) { /* file grew */
+		if (end > getSize()) { /* file grew */
 			setStatusChangeTime(currentTime);
-			setSize(offset + written);
+			setSize(end);
 		}
 		sync();
-
-		return written;
 	}
 
 	protected DataInode(long blockNr, int offset) {
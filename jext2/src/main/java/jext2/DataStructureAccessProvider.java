@@ -19,11 +19,10 @@
 
 package jext2;
 
-import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,21 +32,50 @@ import org.apache.commons.lang3.text.StrBuilder;
 import jext2.exceptions.JExt2Exception;
 
 public abstract class DataStructureAccessProvider<KEY,VAL> {
-	protected Map<KEY, Data> table;
+	protected ConcurrentMap<KEY, Data> table;
 
 	Logger logger = Filesystem.getLogger();
 
+	/** usage counter value of an entry that is being removed from the table */
+	private static final long DEAD = Long.MIN_VALUE;
+
+	/**
+	 * Lock stripes by key. Creating an instance for a key that is not in the
+	 * table and handing a released entry over to released() hold the stripe
+	 * of the key, so an open never misses an instance on its way out.
+	 */
+	private final Object[] keyLocks = new Object[64];
+
+	/**
+	 * Table entry. The usage counter is changed with compare-and-set only.
+	 * Once it drops to zero on release it is set to DEAD and the entry is
+	 * removed from the table; a DEAD entry can't be retained anymore.
+	 */
 	protected class Data {
-		VAL value;
-		long usage = 0;
-		private ReentrantLock lock = new ReentrantLock(true);
+		final VAL value;
+		final AtomicLong usage;
 
-		public void lock() {
-			lock.lock();
+		Data(VAL value, long usage) {
+			this.value = value;
+			this.usage = new AtomicLong(usage);
 		}
 
-		public void unlock() {
-			lock.unlock();
+		/**
+		 * Increase the usage counter unless the entry is dead
+		 * @return false if the entry is dead
+		 */
+		boolean tryRetain() {
+			while (true) {
+				long current = usage.get();
+				if (current == DEAD)
+					return false;
+				if (usage.compareAndSet(current, current + 1))
+					return true;
+			}
+		}
+
+		boolean isDead() {
+			return usage.get() == DEAD;
 		}
 
 		public String toString() {
@@ -97,6 +125,12 @@ public abstract class DataStructureAccessProvider<KEY,VAL> {
 
 	protected DataStructureAccessProvider(int initialCapacity) {
 		table = new ConcurrentHashMap<KEY, Data>(initialCapacity, 0.75f, (int)(Math.ceil(1 * 1.5f)));
+		for (int i=0; i<keyLocks.length; i++)
+			keyLocks[i] = new Object();
+	}
+
+	private Object keyLock(KEY key) {
+		return keyLocks[(key.hashCode() & 0x7fffffff) % keyLocks.length];
 	}
 
 
@@ -105,23 +139,16 @@ public abstract class DataStructureAccessProvider<KEY,VAL> {
 
 	protected long usageCounter(KEY key) {
 		Data ds = getDataStructure(key);
-		long usage;
-		
+
 		if (ds == null) {
 			log("usageCounter","key:" + key + " counter:-1");
 			return -1;
 		} else {
-			ds.lock();
-
-			log("usageCounter","key:" + key + " counter:" + ds.usage);
-			
-			if (ds.usage < 0)
-				usage = -1;
-			else 
-				usage = ds.usage;
-			
-			ds.unlock();
-			return usage;
+			long usage = ds.usage.get();
+
+			log("usageCounter","key:" + key + " counter:" + usage);
+
+			return (usage < 0) ? -1 : usage;
 		}
 	}
 
@@ -131,41 +158,63 @@ public abstract class DataStructureAccessProvider<KEY,VAL> {
 	protected void add(KEY key, VAL value) {
 		assert value != null;
 
-		Data ds = new Data();
-		ds.lock();
-		ds.value = value;
-
-		table.put(key, ds);
+		table.put(key, new Data(value, 0));
 		log("add","key:" + key);
-		ds.unlock();
 	}
 
+	/**
+	 * Retain the entry for key if there is a live one, otherwise insert
+	 * candidate. Dead entries found on the way are removed.
+	 * @return the retained or inserted entry
+	 */
+	private Data retainOrInsert(KEY key, Data candidate) {
+		while (true) {
+			Data ds = table.putIfAbsent(key, candidate);
+			if (ds == null)
+				return candidate;
+			if (ds.tryRetain())
+				return ds;
+			if (table.replace(key, ds, candidate))
+				return candidate;
+		}
+	}
+
+	/**
+	 * Add value unless there is an entry for key already. Increases the
+	 * usage counter of the entry.
+	 * @return value of the entry for key
+	 */
+	protected VAL retainAdd(KEY key, VAL value) {
+		assert value != null;
+
+		Data ds = getDataStructure(key);
+		if (ds != null && ds.tryRetain())
+			return ds.value;
+
+		return retainOrInsert(key, new Data(value, 1)).value;
+	}
 
 	/**
 	 * Open the entry. Increases usage counter and creates an instance if necessary
 	 */
 	protected VAL open(KEY key) throws JExt2Exception {
-		Data ds = getDataStructure(key);
 		VAL result;
-		
-		if (ds != null) {
-			ds.lock();
-			ds.usage += 1;
+
+		Data ds = getDataStructure(key);
+		if (ds != null && ds.tryRetain()) {
 			result = ds.value;
-			ds.unlock();
-						
 		} else {
-			VAL val = createInstance(key);
-			assert val != null;
-		
-			ds = new Data();
-			ds.lock();
-			ds.usage = 1;
-			ds.value = val;
-			result = val;
-			
-			add(key, val);
-			ds.unlock();
+			synchronized (keyLock(key)) {
+				ds = getDataStructure(key);
+				if (ds != null && ds.tryRetain()) {
+					result = ds.value;
+				} else {
+					VAL val = createInstance(key);
+					assert val != null;
+
+					result = retainOrInsert(key, new Data(val, 1)).value;
+				}
+			}
 		}
 
 		assert result != null;
@@ -181,15 +230,10 @@ public abstract class DataStructureAccessProvider<KEY,VAL> {
 	protected VAL retain(KEY key) {
 		Data ds = getDataStructure(key);
 
-		if (ds == null) {
+		if (ds == null || !ds.tryRetain()) {
 			log("retain","nosuccess:" + key);
 			return null;
 		} else {
-			ds.lock();
-			ds.usage += 1;
-			ds.unlock();
-
-			assert ds.usage > 0;
 			assert ds.value != null;
 
 			log("retain","success:" + key);
@@ -210,15 +254,13 @@ public abstract class DataStructureAccessProvider<KEY,VAL> {
 		Data ds = getDataStructure(key);
 		VAL result;
 
-		if (ds == null) {
+		if (ds == null || ds.isDead()) {
 			log("get","nosuccess:" + key);
 			result = null;
 		} else {
-			ds.lock();
 			assert ds.value != null;
 			log("get","success:" + key);
 			result = ds.value;
-			ds.unlock();
 		}
 		return result;
 	}
@@ -234,20 +276,49 @@ public abstract class DataStructureAccessProvider<KEY,VAL> {
 		log("release","key:" + key + " times=" + times);
 
 		Data ds = table.get(key);
-		if (ds != null) {
-			ds.lock();
-
-			ds.usage -= times;
+		if (ds == null)
+			return;
+
+		while (true) {
+			long current = ds.usage.get();
+			if (current == DEAD)
+				return;
+
+			long next = current - times;
+			if (next > 0) {
+				if (ds.usage.compareAndSet(current, next))
+					return;
+				continue;
+			}
 
-			if (ds.usage <= 0) {
-				table.remove(key);
-				log("release","removed:" + key);
+			releasing(key, ds.value);
 
+			synchronized (keyLock(key)) {
+				if (ds.usage.compareAndSet(current, DEAD)) {
+					table.remove(key, ds);
+					log("release","removed:" + key);
+					released(key, ds.value);
+					return;
+				}
 			}
-			ds.unlock();
 		}
 	}
 
+	/**
+	 * Called before the last reference to an entry is released, while the
+	 * entry is still in the table. The entry may be retained again
+	 * concurrently, in which case it stays in the table.
+	 */
+	protected void releasing(KEY key, VAL value) {
+	}
+
+	/**
+	 * Called when an entry was removed from the table because its usage
+	 * counter dropped to zero. Opens of the key wait until it returns.
+	 */
+	protected void released(KEY key, VAL value) {
+	}
+
 	protected void remove(KEY key) {
 		log("remove", "key:" + key);
 		table.remove(key);
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011 Marcel Lauhoff.
+ *
+ * This file is part of jext2.
+ *
+ * jext2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jext2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jext2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jext2;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of directory lookups mapping (parent ino, name) to the child ino.
+ * Names known to be absent are cached as negative entries. DirectoryInode
+ * updates the entries of a directory while it holds the directory lock,
+ * so the cache never disagrees with the directory's data blocks.
+ */
+public class DentryCache {
+	/** upper bound for the number of cached names */
+	static final int MAX_ENTRIES = 65536;
+
+	/** ino of a negative entry */
+	public static final long NEGATIVE = 0;
+	/** returned by #lookup if nothing is cached */
+	public static final long UNKNOWN = -1;
+
+	private static DentryCache instance = new DentryCache();
+
+	private ConcurrentHashMap<Long, ConcurrentHashMap<String, Long>> directories =
+			new ConcurrentHashMap<Long, ConcurrentHashMap<String, Long>>();
+	private AtomicInteger size = new AtomicInteger(0);
+
+	private DentryCache() {
+	}
+
+	public static DentryCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return ino of name in directory parent, NEGATIVE if the name is
+	 *    known not to exist or UNKNOWN if it is not cached
+	 */
+	public long lookup(long parent, String name) {
+		ConcurrentHashMap<String, Long> names = directories.get(parent);
+		if (names == null)
+			return UNKNOWN;
+
+		Long ino = names.get(name);
+		return (ino == null) ? UNKNOWN : ino;
+	}
+
+	/**
+	 * Record the ino of name in directory parent, NEGATIVE if it does not exist
+	 */
+	void put(long parent, String name, long ino) {
+		if (size.get() >= MAX_ENTRIES)
+			clear();
+
+		ConcurrentHashMap<String, Long> names = directories.get(parent);
+		if (names == null) {
+			names = new ConcurrentHashMap<String, Long>();
+			ConcurrentHashMap<String, Long> existing = directories.putIfAbsent(parent, names);
+			if (existing != null)
+				names = existing;
+		}
+
+		if (names.put(name, ino) == null)
+			size.incrementAndGet();
+	}
+
+	/**
+	 * Forget name in directory parent. Used when an entry is changed in place.
+	 */
+	public void remove(long parent, String name) {
+		ConcurrentHashMap<String, Long> names = directories.get(parent);
+		if (names != null && names.remove(name) != null)
+			size.decrementAndGet();
+	}
+
+	/**
+	 * Forget all names of a directory. Used when the directory is deleted and
+	 * its ino may be reused.
+	 */
+	void forgetDirectory(long parent) {
+		ConcurrentHashMap<String, Long> names = directories.remove(parent);
+		if (names != null)
+			size.addAndGet(-names.size());
+	}
+
+	public void clear() {
+		directories.clear();
+		size.set(0);
+	}
+}
@@ -72,28 +72,7 @@ public class DirectoryEntryAccess extends DataStructureAccessProvider<String, Di
 		assert entry != null;
 		if (entry.isUnused()) return entry;
 
-		DirectoryEntry result;
-		
-		Data d = table.get(entry.getName());
-		if (d != null) {
-			d.lock();
-			d.usage += 1;
-			result = d.value;
-			d.unlock();
-
-		} else {
-			d = new Data();
-			d.lock();
-			d.usage = 1;
-			d.value = entry;
-			result = entry;
-
-			table.put(entry.getName(), d);
-			d.unlock();
-		}
-
-		return result;
-
+		return retainAdd(entry.getName(), entry);
 	}
 
 	public boolean hasEntry(DirectoryEntry entry) {
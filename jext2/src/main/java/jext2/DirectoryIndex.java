@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2011 Marcel Lauhoff.
+ *
+ * This file is part of jext2.
+ *
+ * jext2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jext2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jext2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jext2;
+
+import java.util.HashMap;
+
+/**
+ * In-memory hash index of one directory mapping entry names to the
+ * location of the entry on disk. The location is packed into a long:
+ * the block number in the upper bits, the offset in the block in the
+ * lower 16 bits. Guarded by the directory lock of the owning inode.
+ */
+class DirectoryIndex {
+	private HashMap<String, Long> locations = new HashMap<String, Long>();
+
+	static long blockNr(long location) {
+		return location >>> 16;
+	}
+
+	static int offset(long location) {
+		return (int)(location & 0xffff);
+	}
+
+	/**
+	 * Build the index of a directory. Must hold the directory lock.
+	 */
+	static DirectoryIndex build(DirectoryInode inode) {
+		DirectoryIndex index = new DirectoryIndex();
+		for (DirectoryEntry entry : inode.iterateDirectory()) {
+			if (!entry.isUnused())
+				index.put(entry.getName(), entry.getBlockNr(), entry.getOffset());
+		}
+		return index;
+	}
+
+	/**
+	 * @return location of the entry or -1 if there is no entry called name
+	 */
+	long get(String name) {
+		Long location = locations.get(name);
+		return (location == null) ? -1 : location;
+	}
+
+	void put(String name, long blockNr, int offset) {
+		locations.put(name, (blockNr << 16) | offset);
+	}
+
+	void remove(String name) {
+		locations.remove(name);
+	}
+}
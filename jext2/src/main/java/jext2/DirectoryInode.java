@@ -23,6 +23,7 @@ import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
@@ -42,12 +43,17 @@ import jext2.exceptions.TooManyLinks;
 public class DirectoryInode extends DataInode {
 	private static BlockAccess blocks = BlockAccess.getInstance();
 	private static Superblock superblock = Superblock.getInstance();
+	private static DentryCache dentries = DentryCache.getInstance();
 
 	public DirectoryEntryAccess directoryEntries = DirectoryEntryAccess.createForDirectoy(this);
 
 	private ReentrantReadWriteLock directoryLock =
 			new JextReentrantReadWriteLock(true);
 
+	/** name index, built on the first lookup. Guarded by directoryLock */
+	private volatile DirectoryIndex index = null;
+	private final Object indexBuildLock = new Object();
+
 	/**
 	 * Lock to use when iterating a directory with {@link #iterateDirectory()}
 	 */
@@ -240,8 +246,12 @@ public class DirectoryInode extends DataInode {
 				directoryEntries.add(currentEntry);
 				directoryEntries.retain(currentEntry);
 
-				if (currentEntry.getName().equals(newEntry.getName()))
+				if (currentEntry.getName().equals(newEntry.getName())) {
+					directoryEntries.release(currentEntry);
+					directoryEntries.release(newEntry);
+					directoryLock.writeLock().unlock();
 					throw new FileExists();
+				}
 
 				if (currentEntry.getRecLen() == 0 ||
 						currentEntry.getRecLen() > superblock.getBlocksize()) {
@@ -259,11 +269,14 @@ public class DirectoryInode extends DataInode {
 
 					newEntry.setRecLen(currentEntry.getRecLen());
 					blocks.writePartial(blockNr, offset, newEntry.toByteBuffer());
+					if (index != null)
+						index.put(newEntry.getName(), blockNr, offset);
 
 					setModificationTime(new Date()); // should be handeld by block layer
 					setStatusChangeTime(new Date());
 					sync();
 
+					dentries.put(getIno(), newEntry.getName(), newEntry.getIno());
 					directoryEntries.release(currentEntry);
 					directoryEntries.release(newEntry);
 					directoryLock.writeLock().unlock();
@@ -289,11 +302,14 @@ public class DirectoryInode extends DataInode {
 					/* fill in the new one */
 					newEntry.setRecLen(spaceFreed);
 					blocks.writePartial(blockNr, offset, newEntry.toByteBuffer());
+					if (index != null)
+						index.put(newEntry.getName(), blockNr, offset);
 
 					setModificationTime(new Date());
 					setStatusChangeTime(new Date());
 					sync();
 
+					dentries.put(getIno(), newEntry.getName(), newEntry.getIno());
 					directoryEntries.release(currentEntry);
 					directoryEntries.release(newEntry);
 					directoryLock.writeLock().unlock();
@@ -319,6 +335,8 @@ public class DirectoryInode extends DataInode {
 		long blockNr = allocBlocks.getFirst();
 
 		blocks.writePartial(blockNr, 0, newEntry.toByteBuffer());
+		if (index != null)
+			index.put(newEntry.getName(), blockNr, 0);
 
 		DirectoryEntry rest = DirectoryEntry.createRestDummy(newEntry);
 		blocks.writePartial(blockNr, newEntry.getRecLen(), rest.toByteBuffer());
@@ -330,12 +348,64 @@ public class DirectoryInode extends DataInode {
 		setStatusChangeTime(new Date());
 		sync();
 
+		dentries.put(getIno(), newEntry.getName(), newEntry.getIno());
 		directoryEntries.release(newEntry);
 		accessData().unlockHierarchyChanges();
 		directoryLock.writeLock().unlock();
 	}
 
 
+	/**
+	 * Read the names of up to max entries starting at byte position of the
+	 * directory, like readdir(3) with a telldir(3) cookie. Position 0 is the
+	 * start of the directory. The directory is not locked between calls; a
+	 * position is resumed at the first entry starting at or after it, so
+	 * entries merged or split in the meantime don't break the scan.
+	 *
+	 * @return position to continue with or -1 at the end of the directory
+	 */
+	public long readNames(long position, int max, List<String> names) throws JExt2Exception {
+		int blocksize = superblock.getBlocksize();
+
+		directoryLock.readLock().lock();
+		try {
+			while (position < getSize() && names.size() < max) {
+				long fileBlockNr = position / blocksize;
+				int start = (int)(position % blocksize);
+
+				LinkedList<Long> b = accessData().getBlocks(fileBlockNr, 1);
+				accessData().unlockHierarchyChanges();
+				if (b == null) { /* hole */
+					position = (fileBlockNr + 1) * blocksize;
+					continue;
+				}
+
+				long blockNr = b.getFirst();
+				ByteBuffer block = blocks.read(blockNr);
+
+				int offset = 0;
+				while (offset + 8 <= blocksize && names.size() < max) {
+					DirectoryEntry entry = DirectoryEntry.fromByteBuffer(block, blockNr, offset);
+					if (entry.getRecLen() == 0) { /* damaged, skip the block */
+						offset = blocksize;
+						break;
+					}
+					if (offset >= start && !entry.isUnused())
+						names.add(entry.getName());
+					offset += entry.getRecLen();
+				}
+
+				if (offset + 8 > blocksize)
+					offset = blocksize;
+				position = fileBlockNr * blocksize + Math.max(offset, start);
+			}
+		} finally {
+			directoryLock.readLock().unlock();
+		}
+
+		return (position >= getSize()) ? -1 : position;
+	}
+
 	public boolean isEmptyDirectory() {
 		int count = 0;
 		directoryLock.readLock().lock();
@@ -352,8 +422,9 @@ public class DirectoryInode extends DataInode {
 
 
 	/**
-	 * Lookup name in directory. This is done by iterating each entry and
-	 * comparing the names.
+	 * Lookup name in directory. The location of the entry is taken from the
+	 * directory's name index, which is built by iterating all entries on the
+	 * first lookup.
 	 *
 	 * @return DirectoryEntry or null in case its not found
 	 * @throws NoSuchFileOrDirectory
@@ -364,17 +435,65 @@ public class DirectoryInode extends DataInode {
 			throw new FileNameTooLong();
 
 		directoryLock.readLock().lock();
-		for (DirectoryEntry dir : iterateDirectory()) {
-			directoryEntries.retain(dir);
-			if (name.equals(dir.getName())) {
-				directoryLock.readLock().unlock();
-				return dir;
+		try {
+			long location = getIndex().get(name);
+			if (location < 0) {
+				dentries.put(getIno(), name, DentryCache.NEGATIVE);
+				throw new NoSuchFileOrDirectory();
 			}
-			directoryEntries.release(dir);
+
+			long blockNr = DirectoryIndex.blockNr(location);
+			DirectoryEntry entry;
+			try {
+				entry = DirectoryEntry.fromByteBuffer(blocks.read(blockNr), blockNr,
+						DirectoryIndex.offset(location));
+			} catch (IoError e) {
+				throw new NoSuchFileOrDirectory();
+			}
+
+			assert name.equals(entry.getName()) : "Directory index out of date for " + name;
+
+			dentries.put(getIno(), name, entry.getIno());
+			return directoryEntries.retainAdd(entry);
+		} finally {
+			directoryLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the name index, build it if necessary. Must hold the directoryLock.
+	 */
+	private DirectoryIndex getIndex() {
+		DirectoryIndex current = index;
+		if (current != null)
+			return current;
+
+		synchronized (indexBuildLock) {
+			if (index == null)
+				index = DirectoryIndex.build(this);
+			return index;
 		}
+	}
 
-		directoryLock.readLock().unlock();
-		throw new NoSuchFileOrDirectory();
+	/**
+	 * Lookup the ino of name in directory. Answered from the DentryCache
+	 * if possible.
+	 *
+	 * @return ino of the entry
+	 * @throws NoSuchFileOrDirectory
+	 * @throws FileNameTooLong
+	 */
+	public long lookupIno(String name) throws NoSuchFileOrDirectory, FileNameTooLong {
+		long ino = dentries.lookup(getIno(), name);
+		if (ino == DentryCache.NEGATIVE)
+			throw new NoSuchFileOrDirectory();
+		if (ino != DentryCache.UNKNOWN)
+			return ino;
+
+		DirectoryEntry entry = lookup(name);
+		ino = entry.getIno();
+		directoryEntries.release(entry);
+		return ino;
 	}
 
 	@Override
@@ -475,6 +594,16 @@ public class DirectoryInode extends DataInode {
 		return false;
 	}
 
+	/**
+	 * Delete the inode and forget its cached names as its ino may be reused
+	 */
+	@Override
+	public synchronized void delete() throws JExt2Exception {
+		super.delete();
+		index = null;
+		dentries.forgetDirectory(getIno());
+	}
+
 	/**
 	 * Unlink inode from directory. May cause inode destruction. Inode can
 	 * be any kind of inode except directories.
@@ -584,6 +713,9 @@ public class DirectoryInode extends DataInode {
 			directoryEntries.remove(prev);
 		}
 
+		if (index != null)
+			index.remove(name);
+		dentries.put(getIno(), name, DentryCache.NEGATIVE);
 		directoryLock.writeLock().unlock();
 		setModificationTime(new Date());
 		sync();
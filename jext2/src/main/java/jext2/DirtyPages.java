@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2011 Marcel Lauhoff.
+ *
+ * This file is part of jext2.
+ *
+ * jext2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jext2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jext2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jext2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Blocks of a regular file written in delayed allocation mode but not yet
+ * stored on disk. Each page is one whole block, keyed by logical block
+ * number. Not thread safe, the owning inode synchronizes access.
+ */
+class DirtyPages {
+	/** dirty data of all inodes above which writers flush */
+	static final long MAX_DIRTY_BYTES = 32L * 1024 * 1024;
+
+	/** upper bound for the blocks written back with a single call */
+	static final int MAX_RUN_BLOCKS = 1024;
+
+	private static AtomicLong dirtyBytes = new AtomicLong(0);
+
+	private TreeMap<Long, byte[]> pages = new TreeMap<Long, byte[]>();
+
+	/**
+	 * Test if there is more dirty data than MAX_DIRTY_BYTES in memory
+	 */
+	static boolean overLimit() {
+		return dirtyBytes.get() > MAX_DIRTY_BYTES;
+	}
+
+	boolean isEmpty() {
+		return pages.isEmpty();
+	}
+
+	byte[] get(long blockNr) {
+		return pages.get(blockNr);
+	}
+
+	void put(long blockNr, byte[] page) {
+		if (pages.put(blockNr, page) == null)
+			dirtyBytes.addAndGet(page.length);
+	}
+
+	/**
+	 * Copy the dirty data in the range of buf to buf. buf holds the file data
+	 * starting at fileOffset from its position to its limit.
+	 */
+	void copyTo(ByteBuffer buf, long fileOffset) {
+		if (pages.isEmpty())
+			return;
+
+		int blocksize = pages.firstEntry().getValue().length;
+		long end = fileOffset + buf.remaining();
+
+		for (Map.Entry<Long, byte[]> e :
+			pages.subMap(fileOffset / blocksize, true, (end - 1) / blocksize, true).entrySet()) {
+			long pageStart = e.getKey() * blocksize;
+			long from = Math.max(pageStart, fileOffset);
+			long to = Math.min(pageStart + blocksize, end);
+
+			ByteBuffer dst = buf.duplicate();
+			dst.position(buf.position() + (int)(from - fileOffset));
+			dst.put(e.getValue(), (int)(from - pageStart), (int)(to - from));
+		}
+	}
+
+	/**
+	 * Drop the data beyond size
+	 */
+	void truncate(long size) {
+		if (pages.isEmpty())
+			return;
+
+		int blocksize = pages.firstEntry().getValue().length;
+		long firstDropped = (size + blocksize - 1) / blocksize;
+
+		for (byte[] page : pages.tailMap(firstDropped, true).values()) {
+			dirtyBytes.addAndGet(-page.length);
+		}
+		pages.tailMap(firstDropped, true).clear();
+
+		byte[] last = pages.get(size / blocksize);
+		if (last != null)
+			Arrays.fill(last, (int)(size % blocksize), blocksize, (byte)0);
+	}
+
+	/**
+	 * Runs of logically contiguous dirty blocks as {first block, count}. A
+	 * run is at most MAX_RUN_BLOCKS long.
+	 */
+	LinkedList<long[]> runs() {
+		LinkedList<long[]> result = new LinkedList<long[]>();
+
+		for (long blockNr : pages.keySet()) {
+			long[] last = result.peekLast();
+			if (last != null && last[0] + last[1] == blockNr && last[1] < MAX_RUN_BLOCKS)
+				last[1]++;
+			else
+				result.add(new long[] { blockNr, 1 });
+		}
+		return result;
+	}
+
+	/**
+	 * Concatenate count pages starting at firstBlock
+	 */
+	byte[] join(long firstBlock, int count) {
+		int blocksize = pages.firstEntry().getValue().length;
+		byte[] result = new byte[count * blocksize];
+
+		for (int i=0; i<count; i++) {
+			System.arraycopy(pages.get(firstBlock + i), 0, result, i * blocksize, blocksize);
+		}
+		return result;
+	}
+
+	void clear() {
+		for (byte[] page : pages.values()) {
+			dirtyBytes.addAndGet(-page.length);
+		}
+		pages.clear();
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2011 Marcel Lauhoff.
+ *
+ * This file is part of jext2.
+ *
+ * jext2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jext2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jext2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jext2;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Cache of resolved logical to physical block mappings of one inode. Each
+ * entry is a run of blocks that are contiguous both logically and on disk.
+ * Adjacent runs are merged when they are added.
+ */
+class ExtentCache {
+	/** upper bound for the number of runs kept per inode */
+	static final int MAX_EXTENTS = 256;
+
+	static class Extent {
+		final long logical;
+		final long physical;
+		final long length;
+
+		Extent(long logical, long physical, long length) {
+			this.logical = logical;
+			this.physical = physical;
+			this.length = length;
+		}
+
+		long logicalEnd() {
+			return logical + length;
+		}
+
+		boolean contains(long logicalBlock) {
+			return logicalBlock >= logical && logicalBlock < logicalEnd();
+		}
+	}
+
+	private TreeMap<Long, Extent> extents = new TreeMap<Long, Extent>();
+
+	/**
+	 * Find the run containing logicalBlock
+	 * @return run or null if the mapping is not cached
+	 */
+	synchronized Extent lookup(long logicalBlock) {
+		Map.Entry<Long, Extent> e = extents.floorEntry(logicalBlock);
+		if (e == null || !e.getValue().contains(logicalBlock))
+			return null;
+		return e.getValue();
+	}
+
+	/**
+	 * Record that length blocks starting at logical are stored at physical.
+	 * Merges the run with neighbouring runs it continues.
+	 */
+	synchronized void add(long logical, long physical, long length) {
+		if (length < 1)
+			return;
+
+		Map.Entry<Long, Extent> e = extents.floorEntry(logical);
+		if (e != null) {
+			Extent prev = e.getValue();
+			if (prev.logicalEnd() > logical) /* already known */
+				return;
+
+			if (prev.logicalEnd() == logical && prev.physical + prev.length == physical) {
+				extents.remove(prev.logical);
+				logical = prev.logical;
+				physical = prev.physical;
+				length += prev.length;
+			}
+		}
+
+		Extent next = extents.get(logical + length);
+		if (next != null && physical + length == next.physical) {
+			extents.remove(next.logical);
+			length += next.length;
+		}
+
+		if (extents.size() >= MAX_EXTENTS)
+			extents.clear();
+
+		extents.put(logical, new Extent(logical, physical, length));
+	}
+
+	/**
+	 * Forget all mappings of logical blocks from logicalBlock onwards
+	 */
+	synchronized void invalidateFrom(long logicalBlock) {
+		Map.Entry<Long, Extent> e = extents.lowerEntry(logicalBlock);
+		if (e != null && e.getValue().logicalEnd() > logicalBlock) {
+			Extent prev = e.getValue();
+			extents.put(prev.logical,
+					new Extent(prev.logical, prev.physical, logicalBlock - prev.logical));
+		}
+
+		Iterator<Long> tail = extents.tailMap(logicalBlock, true).keySet().iterator();
+		while (tail.hasNext()) {
+			tail.next();
+			tail.remove();
+		}
+	}
+
+	/**
+	 * Forget the mapping of a single logical block
+	 */
+	synchronized void invalidate(long logicalBlock) {
+		Extent e = lookup(logicalBlock);
+		if (e == null)
+			return;
+
+		extents.remove(e.logical);
+		if (logicalBlock > e.logical)
+			extents.put(e.logical, new Extent(e.logical, e.physical, logicalBlock - e.logical));
+		if (logicalBlock + 1 < e.logicalEnd()) {
+			long offset = logicalBlock + 1 - e.logical;
+			extents.put(logicalBlock + 1,
+					new Extent(logicalBlock + 1, e.physical + offset, e.length - offset));
+		}
+	}
+
+	synchronized void clear() {
+		extents.clear();
+	}
+}
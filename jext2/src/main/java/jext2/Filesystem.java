@@ -39,6 +39,8 @@ import java.util.logging.Logger;
 public class Filesystem {
 	private static Charset charset = Charset.defaultCharset();
 	private static Logger logger;
+	private static AccessTimeMode accessTimeMode = AccessTimeMode.STRICT;
+	private static boolean delayedAllocation = false;
 
 	static class Jext2Formatter extends Formatter {
 		private static final DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
@@ -76,6 +78,24 @@ public class Filesystem {
 		Filesystem.charset = charset;
 	}
 
+	public static AccessTimeMode getAccessTimeMode() {
+		return accessTimeMode;
+	}
+	public static void setAccessTimeMode(AccessTimeMode mode) {
+		Filesystem.accessTimeMode = mode;
+	}
+
+	/**
+	 * In delayed allocation mode regular file data is buffered in memory and
+	 * blocks are allocated when it is written back
+	 */
+	public static boolean isDelayedAllocation() {
+		return delayedAllocation;
+	}
+	public static void setDelayedAllocation(boolean delayedAllocation) {
+		Filesystem.delayedAllocation = delayedAllocation;
+	}
+
 	/**
 	 * Get the PID of the running process
 	 */
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2011 Marcel Lauhoff.
+ *
+ * This file is part of jext2.
+ *
+ * jext2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jext2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jext2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jext2;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import jext2.exceptions.JExt2Exception;
+
+/**
+ * In memory index of the free data blocks, built from the block bitmaps at
+ * mount time. Free blocks are kept as extents of contiguous blocks, sorted by
+ * start block and by length, so a run of N blocks near a goal block is found
+ * without scanning bitmaps.
+ *
+ * The index is partitioned by block group like the allocation locks: each
+ * group has its own extent trees and monitor, and extents never span block
+ * groups. Allocators in different groups don't contend.
+ *
+ * The bitmaps stay authoritative: callers take blocks from the index first
+ * and then mark them in the bitmap; freed blocks are returned to the index
+ * after their bits were cleared.
+ */
+public class FreeBlockIndex {
+	private static FreeBlockIndex _instance = new FreeBlockIndex();
+
+	private static Superblock superblock = Superblock.getInstance();
+	private static BlockGroupAccess blockGroups = BlockGroupAccess.getInstance();
+	private static BitmapAccess bitmaps = BitmapAccess.getInstance();
+
+	/** number of extents after the goal checked before falling back to best fit */
+	static final int NEAR_EXTENTS = 16;
+
+	/**
+	 * Free extents of one block group
+	 */
+	private static class GroupIndex {
+		/** start block -> length */
+		private TreeMap<Long, Long> byStart = new TreeMap<Long, Long>();
+		/** length -> start blocks */
+		private TreeMap<Long, TreeSet<Long>> byLength = new TreeMap<Long, TreeSet<Long>>();
+
+		/**
+		 * Find count contiguous free blocks near goal and remove them.
+		 * Prefers the goal itself, then the next extents after the goal,
+		 * then the smallest extent that is large enough.
+		 * @return first block of the run or -1 if there is no such run
+		 */
+		synchronized long take(long goal, long count) {
+			long start = -1;
+
+			Map.Entry<Long, Long> e = byStart.floorEntry(goal);
+			if (e != null && goal + count <= e.getKey() + e.getValue()) {
+				start = goal;
+			} else {
+				int checked = 0;
+				for (Map.Entry<Long, Long> next : byStart.tailMap(goal, false).entrySet()) {
+					if (next.getValue() >= count) {
+						start = next.getKey();
+						break;
+					}
+					if (++checked >= NEAR_EXTENTS)
+						break;
+				}
+			}
+
+			if (start < 0) {
+				Map.Entry<Long, TreeSet<Long>> fit = byLength.ceilingEntry(count);
+				if (fit == null)
+					return -1;
+
+				Long near = fit.getValue().ceiling(goal);
+				start = (near != null) ? near : fit.getValue().first();
+			}
+
+			cut(start, count);
+			return start;
+		}
+
+		synchronized long takeAt(long start, long max) {
+			Map.Entry<Long, Long> e = byStart.floorEntry(start);
+			if (e == null || start >= e.getKey() + e.getValue())
+				return 0;
+
+			long count = Math.min(max, e.getKey() + e.getValue() - start);
+			cut(start, count);
+			return count;
+		}
+
+		synchronized void markFree(long start, long count) {
+			long end = start + count;
+
+			Map.Entry<Long, Long> prev = byStart.floorEntry(start);
+			if (prev != null && prev.getKey() + prev.getValue() >= start) {
+				start = prev.getKey();
+				end = Math.max(end, prev.getKey() + prev.getValue());
+				delete(prev.getKey(), prev.getValue());
+			}
+
+			Map.Entry<Long, Long> next = byStart.ceilingEntry(start);
+			while (next != null && next.getKey() <= end) {
+				end = Math.max(end, next.getKey() + next.getValue());
+				delete(next.getKey(), next.getValue());
+				next = byStart.ceilingEntry(start);
+			}
+
+			insert(start, end - start);
+		}
+
+		synchronized int extents() {
+			return byStart.size();
+		}
+
+		/**
+		 * Remove [start, start+count) which must be inside a single extent
+		 */
+		private void cut(long start, long count) {
+			Map.Entry<Long, Long> e = byStart.floorEntry(start);
+			long extentStart = e.getKey();
+			long extentEnd = extentStart + e.getValue();
+			assert start + count <= extentEnd;
+
+			delete(extentStart, e.getValue());
+			if (start > extentStart)
+				insert(extentStart, start - extentStart);
+			if (start + count < extentEnd)
+				insert(start + count, extentEnd - start - count);
+		}
+
+		private void insert(long start, long length) {
+			byStart.put(start, length);
+
+			TreeSet<Long> starts = byLength.get(length);
+			if (starts == null) {
+				starts = new TreeSet<Long>();
+				byLength.put(length, starts);
+			}
+			starts.add(start);
+		}
+
+		private void delete(long start, long length) {
+			byStart.remove(start);
+
+			TreeSet<Long> starts = byLength.get(length);
+			starts.remove(start);
+			if (starts.isEmpty())
+				byLength.remove(length);
+		}
+	}
+
+	/** null while the index is not built */
+	private volatile GroupIndex[] groups = null;
+
+	private FreeBlockIndex() {
+	}
+
+	/**
+	 * Read all block bitmaps and build the index
+	 */
+	public synchronized void build() throws JExt2Exception {
+		clear();
+
+		GroupIndex[] newGroups = new GroupIndex[superblock.getGroupsCount()];
+		int extents = 0;
+		for (BlockGroupDescriptor descr : blockGroups.iterateBlockGroups()) {
+			GroupIndex index = new GroupIndex();
+			long first = descr.firstBlock();
+			int end = (int)Math.min(superblock.getBlocksPerGroup(),
+					superblock.getBlocksCount() - first);
+
+			Bitmap bitmap = bitmaps.openDataBitmap(descr);
+			int pos = bitmap.getNextBitPos(0, end, false);
+			while (pos < end) {
+				int used = bitmap.getNextBitPos(pos, end, true);
+				index.insert(first + pos, used - pos);
+				pos = bitmap.getNextBitPos(used, end, false);
+			}
+			bitmaps.closeBitmap(bitmap);
+
+			newGroups[descr.getBlockGroup()] = index;
+			extents += index.extents();
+		}
+
+		groups = newGroups;
+		Filesystem.getLogger().info("Free block index built: " + extents + " extents");
+	}
+
+	public boolean isBuilt() {
+		return groups != null;
+	}
+
+	public synchronized void clear() {
+		groups = null;
+	}
+
+	/**
+	 * Find count contiguous free blocks near goal and remove them from the
+	 * index. The group of goal is searched first, then the following groups.
+	 * @return first block of the run or -1 if there is no such run
+	 */
+	public long take(long goal, long count) {
+		if (count < 1)
+			throw new IllegalArgumentException();
+
+		GroupIndex[] groups = this.groups;
+		if (groups == null)
+			return -1;
+
+		int goalGroup = Calculations.groupOfBlk(goal);
+		for (int i=0; i<groups.length; i++) {
+			int group = (goalGroup + i) % groups.length;
+			long start = groups[group].take((i == 0) ? goal : 0, count);
+			if (start >= 0)
+				return start;
+		}
+		return -1;
+	}
+
+	/**
+	 * Remove up to max free blocks starting exactly at start from the index.
+	 * The run ends at the end of the block group of start.
+	 * @return number of blocks taken, 0 if start is not free
+	 */
+	public long takeAt(long start, long max) {
+		GroupIndex[] groups = this.groups;
+		if (groups == null)
+			return 0;
+
+		return groups[Calculations.groupOfBlk(start)].takeAt(start, max);
+	}
+
+	/**
+	 * Return blocks to the index. Merges with neighbouring extents of the
+	 * same block group.
+	 */
+	public void markFree(long start, long count) {
+		GroupIndex[] groups = this.groups;
+		if (groups == null || count < 1)
+			return;
+
+		long end = start + count;
+		while (start < end) {
+			int group = Calculations.groupOfBlk(start);
+			long groupEnd = superblock.getFirstDataBlock()
+					+ (long)(group + 1) * superblock.getBlocksPerGroup();
+			long runEnd = Math.min(end, groupEnd);
+			groups[group].markFree(start, runEnd - start);
+			start = runEnd;
+		}
+	}
+
+	public static FreeBlockIndex getInstance() {
+		return FreeBlockIndex._instance;
+	}
+}
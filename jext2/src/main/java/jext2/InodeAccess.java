@@ -19,6 +19,10 @@
 
 package jext2;
 import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
 import jext2.exceptions.InvalidArgument;
@@ -33,6 +37,21 @@ public class InodeAccess extends DataStructureAccessProvider<Long, Inode>{
 	private static BlockAccess blocks = BlockAccess.getInstance();
 	private static BlockGroupAccess blockGroups = BlockGroupAccess.getInstance();
 
+	/** number of released inodes kept for reuse */
+	public static final int CACHED_INODES = 1024;
+
+	/**
+	 * Released inodes in least recently used order. Opening an inode takes
+	 * it from here before reading it from disk.
+	 */
+	private LinkedHashMap<Long, Inode> releasedInodes = new LinkedHashMap<Long, Inode>(CACHED_INODES, 0.75f, true);
+
+	/** Inodes with an atime update not yet written (AccessTimeMode.LAZYTIME) */
+	private ConcurrentHashMap<Long, Inode> lazyAccessTimes = new ConcurrentHashMap<Long, Inode>();
+
+	/** regular files with data not yet written back in delayed allocation mode */
+	private ConcurrentHashMap<Long, RegularInode> delayedData = new ConcurrentHashMap<Long, RegularInode>();
+
 	private InodeAccess() {
 		super(1000);
 	}
@@ -52,6 +71,11 @@ public class InodeAccess extends DataStructureAccessProvider<Long, Inode>{
 	}
 
 	public static Inode readByIno(long ino) throws IoError, InvalidArgument {
+		assert getInstance().get(ino) == null : "Access provider shouldn't have an old reference";
+		return readFromInodeTable(ino);
+	}
+
+	private static Inode readFromInodeTable(long ino) throws IoError, InvalidArgument {
 		if (ino == 0 || ino > superblock.getInodesCount()) {
 			throw new InvalidArgument();
 		}
@@ -68,8 +92,6 @@ public class InodeAccess extends DataStructureAccessProvider<Long, Inode>{
 		if (absBlock < 0 || relOffset < 0)
 			throw new IoError();
 
-		assert getInstance().get(ino) == null : "Access provider shouldn't have an old reference";
-
 		ByteBuffer rawInode = Inode.allocateByteBuffer();
 		blocks.readToBuffer(absBlock, relOffset, rawInode);
 		Inode inode = InodeAccess.readFromByteBuffer(rawInode);
@@ -101,6 +123,25 @@ public class InodeAccess extends DataStructureAccessProvider<Long, Inode>{
 		return get(ino);
 	}
 
+	/**
+	 * Get the inode for reading its attributes without opening it. Returns
+	 * the opened instance if there is one, otherwise a copy read from the
+	 * inode table that must not be modified.
+	 */
+	public Inode peekInode(long ino) throws IoError, InvalidArgument {
+		Inode inode = get(ino);
+		if (inode != null)
+			return inode;
+
+		synchronized (releasedInodes) {
+			inode = releasedInodes.get(ino);
+		}
+		if (inode != null)
+			return inode;
+
+		return readFromInodeTable(ino);
+	}
+
 	public Inode openInode(long ino) throws JExt2Exception {
 		Inode inode = open(ino);
 
@@ -130,11 +171,138 @@ public class InodeAccess extends DataStructureAccessProvider<Long, Inode>{
 	}
 
 	public void removeInode(long ino) {
+		lazyAccessTimes.remove(ino);
+		RegularInode delayed = delayedData.remove(ino);
+		if (delayed != null)
+			delayed.discardDelayedData();
+		synchronized (releasedInodes) {
+			releasedInodes.remove(ino);
+		}
 		remove(ino);
 	}
 
+	/**
+	 * Write back delayed data while the inode is still in the table, so a
+	 * concurrent open finds it instead of reading the old size and block
+	 * pointers from disk.
+	 */
+	@Override
+	protected void releasing(Long ino, Inode inode) {
+		flushDelayedData(ino, inode);
+	}
+
+	/**
+	 * Keep a released inode in the LRU cache. The least recently released
+	 * inode is evicted when the cache is full.
+	 */
+	@Override
+	protected void released(Long ino, Inode inode) {
+		/* data written between releasing() and the last release */
+		flushDelayedData(ino, inode);
+
+		if (inode instanceof DataInode && ((DataInode)inode).dataAccess != null) {
+			try {
+				((DataInode)inode).dataAccess.releaseReservation();
+			} catch (JExt2Exception e) {
+				logger.warning("Failed to release block reservation of inode " + ino + ": " + e);
+			}
+		}
+
+		if (inode.isDeleted())
+			return;
+
+		Inode evicted = null;
+		synchronized (releasedInodes) {
+			releasedInodes.put(ino, inode);
+			if (releasedInodes.size() > CACHED_INODES) {
+				Iterator<Map.Entry<Long, Inode>> eldest = releasedInodes.entrySet().iterator();
+				evicted = eldest.next().getValue();
+				eldest.remove();
+			}
+		}
+
+		if (evicted != null && lazyAccessTimes.remove(evicted.getIno()) != null) {
+			try {
+				evicted.sync();
+			} catch (IoError e) {
+				logger.warning("Failed to write access time of evicted inode " + evicted.getIno());
+			}
+		}
+	}
+
+	/**
+	 * Write back the delayed data of an inode that is released. A closing
+	 * caller flushes first and gets the error, see
+	 * Jext2ChannelServer#close(). If write back fails here, the data stays
+	 * in memory for the next #flushDelayedData().
+	 */
+	private void flushDelayedData(Long ino, Inode inode) {
+		RegularInode delayed = delayedData.get(ino);
+		if (delayed != null) {
+			try {
+				delayed.flushDelayedData();
+				delayedDataFlushed(delayed);
+			} catch (JExt2Exception e) {
+				logger.severe("Failed to write back delayed data of inode " + ino + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Forget an inode whose delayed data was written back, unless it was
+	 * written to again meanwhile
+	 */
+	private void delayedDataFlushed(RegularInode inode) {
+		if (delayedData.remove(inode.getIno(), inode) && inode.hasDelayedData())
+			delayedData.put(inode.getIno(), inode);
+	}
+
+	/**
+	 * Remember that the atime of inode changed in memory only
+	 */
+	void markAccessTimeDirty(Inode inode) {
+		lazyAccessTimes.put(inode.getIno(), inode);
+	}
+
+	/**
+	 * Remember that inode has data in memory only
+	 */
+	void markDelayedData(RegularInode inode) {
+		delayedData.put(inode.getIno(), inode);
+	}
+
+	/**
+	 * Write back the data of all inodes written in delayed allocation mode.
+	 * Stops at the first inode that fails, its data stays in memory.
+	 */
+	public void flushDelayedData() throws JExt2Exception {
+		for (RegularInode inode : delayedData.values()) {
+			inode.flushDelayedData();
+			delayedDataFlushed(inode);
+		}
+	}
+
+	/**
+	 * Write all inodes with pending atime updates
+	 */
+	public void syncAccessTimes() throws IoError {
+		Iterator<Inode> i = lazyAccessTimes.values().iterator();
+		while (i.hasNext()) {
+			Inode inode = i.next();
+			i.remove();
+			inode.sync();
+		}
+	}
+
 	@Override
 	protected Inode createInstance(Long ino) throws JExt2Exception {
+		Inode inode;
+		synchronized (releasedInodes) {
+			inode = releasedInodes.remove(ino);
+		}
+		if (inode != null)
+			return inode;
+
 		return InodeAccess.readByIno(ino);
 	}
 }
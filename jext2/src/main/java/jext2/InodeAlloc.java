@@ -177,23 +177,25 @@ public class InodeAlloc {
 
 		BlockGroupDescriptor groupDescr =
 				blockGroups.getGroupDescriptor(Calculations.groupOfIno(ino));
-		Bitmap bitmap = bitmaps.openInodeBitmap(groupDescr);
 		int bit = Calculations.localInodeIndex(ino);
 
-		if (!bitmap.isSet(bit)) {
-			throw new RuntimeException("Bit allready cleared for inode " + ino);
-		} else {
-			bitmap.setBit(bit, false);
-			bitmap.write();
-		}
-
-		bitmaps.closeBitmap(bitmap);
+		groupDescr.lockAllocation();
+		Bitmap bitmap = bitmaps.openInodeBitmap(groupDescr);
+		try {
+			if (!bitmap.isSet(bit)) {
+				throw new RuntimeException("Bit allready cleared for inode " + ino);
+			} else {
+				bitmap.setBit(bit, false);
+				bitmap.write();
+			}
 
-		groupDescr.setFreeBlocksCount(groupDescr.getFreeInodesCount() + 1);
+			groupDescr.addFreeInodes(1);
 
-		if (inode.isDirectory()) {
-			groupDescr.setUsedDirsCount(groupDescr.getUsedDirsCount() - 1);
-			superblock.incrementUsedDirsCount(-1);
+			if (inode.isDirectory())
+				groupDescr.addUsedDirs(-1);
+		} finally {
+			bitmaps.closeBitmap(bitmap);
+			groupDescr.unlockAllocation();
 		}
 
 		if (logger.isLoggable(Level.FINE)) {
@@ -214,10 +216,12 @@ public class InodeAlloc {
 	}
 
 	/** Register Inode on disk. Find suitable position an reserve this position
-	 * for the Inode. Finally set location data in Inode
+	 * for the Inode. Finally set location data in Inode. Only the block group
+	 * the inode is allocated in is locked, so inodes can be registered in
+	 * different groups in parallel.
 	 * @throws JExt2Exception
 	 */
-	public static synchronized void registerInode(Inode dir, Inode inode) throws JExt2Exception {
+	public static void registerInode(Inode dir, Inode inode) throws JExt2Exception {
 		assert inode.getIno() == -1 : "It's my job to set the ino!";
 
 		/* find best suitable block group */
@@ -232,53 +236,60 @@ public class InodeAlloc {
 		if (group == -1)
 			throw new RuntimeException("No group found");
 
-		BlockGroupDescriptor descr = blockGroups.getGroupDescriptor(group);
-
 		/* find free inode slot in block groups starting at $group */
-		int ino;
-		long globalIno;
-		if (group == 0)
-			ino = (int)(superblock.getFirstIno());
-		else
-			ino = 0;
-
-		while (true) {
-			BlockGroupDescriptor bgroup = blockGroups.getGroupDescriptor(group);
-			Bitmap bmap = bitmaps.openInodeBitmap(bgroup);
+		BlockGroupDescriptor descr = null;
+		int ino = -1;
+		long globalIno = -1;
+		int groupsCount = superblock.getGroupsCount();
 
-			ino = bmap.getNextZeroBitPos(ino);
-			if (ino > superblock.getInodesPerGroup()) {
-				bitmaps.closeBitmap(bmap);
-				group++;
+		for (int i=0; i<groupsCount && globalIno < 0; i++, group = (group + 1) % groupsCount) {
+			descr = blockGroups.getGroupDescriptor(group);
+			if (descr.getFreeInodesCount() == 0)
 				continue;
-			}
-
-			globalIno = ino + (group * superblock.getInodesPerGroup() + 1);
-			if (globalIno < superblock.getFirstIno() ||
-					globalIno > superblock.getInodesCount()) {
-				continue; // TODO: Fix me. This looks like a potentially endless loop.
-			}
 
-			InodeAccess inodes = InodeAccess.getInstance();
-			if (inodes.getOpened(globalIno) != null) {
-				logger.warning("Found inode in cache with same number - inode caching is broken :(");
-				inodes.remove(globalIno);
+			descr.lockAllocation();
+			Bitmap bmap = bitmaps.openInodeBitmap(descr);
+			try {
+				ino = (group == 0) ? (int)(superblock.getFirstIno()) : 0;
+
+				while (true) {
+					ino = bmap.getNextZeroBitPos(ino);
+					if (ino < 0 || ino >= superblock.getInodesPerGroup())
+						break;
+
+					long candidate = ino + (group * superblock.getInodesPerGroup() + 1);
+					if (candidate < superblock.getFirstIno() ||
+							candidate > superblock.getInodesCount()) {
+						ino++;
+						continue;
+					}
+
+					InodeAccess inodes = InodeAccess.getInstance();
+					if (inodes.getOpened(candidate) != null) {
+						logger.warning("Found inode in cache with same number - inode caching is broken :(");
+						inodes.remove(candidate);
+					}
+
+					bmap.setBit(ino, true);
+					bmap.write();
+
+					/* apply changes to meta data */
+					descr.addFreeInodes(-1);
+					if (inode.getMode().isDirectory())
+						descr.addUsedDirs(1);
+
+					globalIno = candidate;
+					break;
+				}
+			} finally {
+				bitmaps.closeBitmap(bmap);
+				descr.unlockAllocation();
 			}
-
-			bmap.setBit(ino, true);
-			bmap.write();
-			bitmaps.closeBitmap(bmap);
-			break;
 		}
 
-		/* apply changes to meta data */
-		superblock.incrementFreeInodesCount(-1);
-		descr.setFreeInodesCount(descr.getFreeInodesCount() - 1);
-
-		if (inode.getMode().isDirectory()) {
-			superblock.incrementUsedDirsCount(1);
-			descr.setUsedDirsCount(descr.getUsedDirsCount() + 1);
-		}
+		if (globalIno < 0)
+			throw new NoSpaceLeftOnDevice();
+		group = descr.getBlockGroup();
 
 		/* set location metadata of inode */
 		int offset = (ino * superblock.getInodeSize()) % superblock.getBlocksize();
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011 Marcel Lauhoff.
+ *
+ * This file is part of jext2.
+ *
+ * jext2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jext2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jext2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jext2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import jext2.exceptions.IoError;
+
+/**
+ * Block device backed by memory mappings of an image file. The file is
+ * mapped in segments of SEGMENT_SIZE bytes because a single
+ * MappedByteBuffer cannot exceed 2GB. Reads and writes are plain memory
+ * copies, the operating system writes the pages back.
+ */
+class MappedBlockDevice {
+	/** 1GB - a multiple of every ext2 blocksize, so blocks never span segments */
+	static final int SEGMENT_SIZE = 1 << 30;
+
+	private MappedByteBuffer[] segments;
+	private long size;
+
+	private MappedBlockDevice(MappedByteBuffer[] segments, long size) {
+		this.segments = segments;
+		this.size = size;
+	}
+
+	/**
+	 * Map the whole channel read/write.
+	 * @throws IOException if the channel can not be mapped, eg. because it is
+	 *    not a regular file
+	 */
+	static MappedBlockDevice map(FileChannel channel) throws IOException {
+		long size = channel.size();
+		int count = (int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		MappedByteBuffer[] segments = new MappedByteBuffer[count];
+
+		for (int i=0; i<count; i++) {
+			long start = (long)i * SEGMENT_SIZE;
+			long length = Math.min(SEGMENT_SIZE, size - start);
+			segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+		}
+
+		return new MappedBlockDevice(segments, size);
+	}
+
+	/**
+	 * Copy from the device at position into buf until buf is full or the end
+	 * of the device is reached. Behaves like FileChannel.read(buf, position).
+	 */
+	int read(ByteBuffer buf, long position) {
+		int count = 0;
+
+		while (buf.hasRemaining() && position < size) {
+			ByteBuffer segment = segments[(int)(position / SEGMENT_SIZE)].duplicate();
+			int offset = (int)(position % SEGMENT_SIZE);
+			int length = Math.min(buf.remaining(), segment.capacity() - offset);
+
+			segment.position(offset);
+			segment.limit(offset + length);
+			buf.put(segment);
+
+			position += length;
+			count += length;
+		}
+
+		return (count == 0 && position >= size) ? -1 : count;
+	}
+
+	/**
+	 * Copy buf's remaining bytes to the device at position. Behaves like
+	 * FileChannel.write(buf, position) except that it can't grow the device.
+	 */
+	int write(ByteBuffer buf, long position) throws IoError {
+		if (position + buf.remaining() > size)
+			throw new IoError("write beyond end of mapped device at " + position);
+
+		int count = 0;
+
+		while (buf.hasRemaining()) {
+			ByteBuffer segment = segments[(int)(position / SEGMENT_SIZE)].duplicate();
+			int offset = (int)(position % SEGMENT_SIZE);
+			int length = Math.min(buf.remaining(), segment.capacity() - offset);
+
+			int limit = buf.limit();
+			buf.limit(buf.position() + length);
+			segment.position(offset);
+			segment.put(buf);
+			buf.limit(limit);
+
+			position += length;
+			count += length;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Write modified pages back to the image file
+	 */
+	void force() {
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+	}
+}
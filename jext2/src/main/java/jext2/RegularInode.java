@@ -20,17 +20,26 @@
 package jext2;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedList;
 
 import jext2.annotations.NotThreadSafe;
 import jext2.exceptions.FileTooLarge;
 import jext2.exceptions.IoError;
 import jext2.exceptions.JExt2Exception;
+import jext2.exceptions.NoSpaceLeftOnDevice;
 
 /**
  * Inode for regular files.
  */
 public class RegularInode extends DataInode {
+	/** data written in delayed allocation mode. Access is synchronized on it */
+	private final DirtyPages dirtyPages = new DirtyPages();
+
+	/** dirty pages without block on disk, blocks are reserved for them */
+	private long delayedDataBlocks = 0;
+
 	protected RegularInode(long blockNr, int offset) throws IoError {
 		super(blockNr, offset);
 	}
@@ -85,12 +94,209 @@ public class RegularInode extends DataInode {
 	public void setSizeAndTruncate(long size) throws JExt2Exception, FileTooLarge {
 		if (size < 0)
 			throw new IllegalArgumentException("Try to set negative file size");
+		synchronized (dirtyPages) {
+			dirtyPages.truncate(size);
+		}
 		long oldSize = getSize();
 		setSize(size);
 		if (oldSize > size)
 			accessData().truncate(size);
 	}
 
+	/**
+	 * Read data including data not yet written back in delayed allocation mode
+	 */
+	@Override
+	public ByteBuffer readDataAhead(int size, long fileOffset) throws JExt2Exception, FileTooLarge {
+		if (!Filesystem.isDelayedAllocation() && dirtyPages.isEmpty())
+			return super.readDataAhead(size, fileOffset);
+
+		synchronized (dirtyPages) {
+			ByteBuffer buf = super.readDataAhead(size, fileOffset);
+			if (buf != null)
+				dirtyPages.copyTo(buf, fileOffset);
+			return buf;
+		}
+	}
+
+	/**
+	 * Write data. In delayed allocation mode the data is only copied to dirty
+	 * pages in memory, blocks are allocated for whole runs of pages when they
+	 * are written back by #flushDelayedData(). The blocks needed are reserved
+	 * up front, so a write that does not fit fails here and not at write back.
+	 */
+	@Override
+	public int writeData(byte[] rawBytes, long offset) throws JExt2Exception, NoSpaceLeftOnDevice, FileTooLarge {
+		if (!Filesystem.isDelayedAllocation())
+			return super.writeData(rawBytes, offset);
+
+		int blocksize = superblock.getBlocksize();
+
+		synchronized (dirtyPages) {
+			reserveBlocks(offset / blocksize, (offset + rawBytes.length + blocksize - 1) / blocksize);
+
+			int n = 0;
+			while (n < rawBytes.length) {
+				long blockNr = (offset + n) / blocksize;
+				int pageOffset = (int)((offset + n) % blocksize);
+				int count = Math.min(blocksize - pageOffset, rawBytes.length - n);
+
+				byte[] page = dirtyPages.get(blockNr);
+				if (page == null) {
+					page = new byte[blocksize];
+					if (count < blocksize) { /* keep the stored part of the block */
+						ByteBuffer stored = readStoredData(blocksize, blockNr * blocksize);
+						if (stored != null)
+							stored.get(page, 0, stored.remaining());
+					}
+					dirtyPages.put(blockNr, page);
+				}
+
+				System.arraycopy(rawBytes, n, page, pageOffset, count);
+				n += count;
+			}
+
+			Date currentTime = new Date();
+			setModificationTime(currentTime);
+			if (offset + rawBytes.length > getSize()) {
+				setStatusChangeTime(currentTime);
+				setSize(offset + rawBytes.length);
+			}
+		}
+		InodeAccess.getInstance().markDelayedData(this);
+
+		if (DirtyPages.overLimit())
+			InodeAccess.getInstance().flushDelayedData();
+
+		return rawBytes.length;
+	}
+
+	/**
+	 * Reserve blocks for the pages from first to end that are neither dirty
+	 * nor stored on disk yet, and for the indirection blocks they may need.
+	 * Must hold the dirtyPages lock.
+	 */
+	private void reserveBlocks(long first, long end) throws JExt2Exception, FileTooLarge {
+		long newBlocks = 0;
+		for (long blockNr=first; blockNr<end; blockNr++) {
+			if (dirtyPages.get(blockNr) == null)
+				newBlocks++;
+		}
+		if (newBlocks == 0)
+			return;
+
+		long holes = 0;
+		LinkedList<long[]> runs = accessData().getBlockRuns(first, end - first);
+		accessData().unlockHierarchyChanges();
+
+		long blockNr = first;
+		for (long[] run : runs) {
+			if (run[0] == 0) {
+				for (long i=0; i<run[1]; i++) {
+					if (dirtyPages.get(blockNr + i) == null)
+						holes++;
+				}
+			}
+			blockNr += run[1];
+		}
+		if (holes == 0)
+			return;
+
+		long total = delayedDataBlocks + holes;
+		accessData().reserveDelayedBlocks(holes +
+				indirectBlocksEstimate(total) - indirectBlocksEstimate(delayedDataBlocks));
+		delayedDataBlocks = total;
+	}
+
+	/**
+	 * Upper bound for the indirection blocks allocated with count data
+	 * blocks: one per block of addresses, plus one for each run that crosses
+	 * into the next indirection block and the double and triple indirect
+	 * blocks.
+	 */
+	private long indirectBlocksEstimate(long count) {
+		if (count == 0)
+			return 0;
+		return count / superblock.getAddressesPerBlock() + 3;
+	}
+
+	/**
+	 * Give back the blocks reserved for the dirty pages
+	 */
+	private void releaseBlocks() {
+		accessData().releaseDelayedBlocks();
+		delayedDataBlocks = 0;
+	}
+
+	/**
+	 * Test if there is data not yet written back
+	 */
+	public boolean hasDelayedData() {
+		synchronized (dirtyPages) {
+			return !dirtyPages.isEmpty();
+		}
+	}
+
+	/**
+	 * Drop the data not yet written back. Called when the inode is deleted.
+	 */
+	void discardDelayedData() {
+		synchronized (dirtyPages) {
+			dirtyPages.clear();
+			releaseBlocks();
+		}
+	}
+
+	/**
+	 * Allocate blocks for the dirty pages and write them back. Each run of
+	 * contiguous pages is written with a single call, so its blocks are
+	 * allocated together. The pages stay in memory if write back fails.
+	 */
+	public void flushDelayedData() throws JExt2Exception {
+		int blocksize = superblock.getBlocksize();
+
+		synchronized (dirtyPages) {
+			if (dirtyPages.isEmpty()) {
+				releaseBlocks();
+				return;
+			}
+
+			if (isDeleted()) {
+				dirtyPages.clear();
+				releaseBlocks();
+				return;
+			}
+
+			Date modificationTime = getModificationTime();
+			Date statusChangeTime = getStatusChangeTime();
+			try {
+				for (long[] run : dirtyPages.runs()) {
+					long offset = run[0] * blocksize;
+					int length = (int)Math.min(run[1] * blocksize, getSize() - offset);
+					if (length <= 0)
+						continue;
+
+					byte[] data = dirtyPages.join(run[0], (int)run[1]);
+					if (length < data.length)
+						data = Arrays.copyOf(data, length);
+					super.writeData(data, offset);
+				}
+			} finally {
+				setModificationTime(modificationTime);
+				setStatusChangeTime(statusChangeTime);
+				sync();
+			}
+			dirtyPages.clear();
+			releaseBlocks();
+		}
+	}
+
+	@Override
+	public void force() throws JExt2Exception {
+		flushDelayedData();
+		super.force();
+	}
+
 	/**
 	 * Create empty Inode. Initialize *Times, block array.
 	 */
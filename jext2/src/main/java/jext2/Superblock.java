@@ -24,6 +24,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.UUID;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -94,9 +96,13 @@ public class Superblock extends Block {
 		return reservedBlocksCount;
 	}
 	public final long getFreeBlocksCount() {
+		if (groupTotals)
+			return groupFreeBlocks.sum();
 		return freeBlocksCount;
 	}
 	public final long getFreeInodesCount() {
+		if (groupTotals)
+			return groupFreeInodes.sum();
 		return freeInodesCount;
 	}
 	public final long getFirstDataBlock() {
@@ -199,6 +205,8 @@ public class Superblock extends Block {
 		return groupsCount;
 	}
 	public final long getDirsCount() {
+		if (groupTotals)
+			return groupUsedDirs.sum();
 		return dirsCount;
 	}
 	public final int getInodeTableBlocksPerGroup() {
@@ -216,43 +224,59 @@ public class Superblock extends Block {
 		return this.overhead;
 	}
 
-	public void incrementFreeBlocksCount(int amount) {
-	 	superBlockLock.writeLock().lock();
-	 	try {
-	 		freeBlocksCount += amount;
-		} finally {
-	 		superBlockLock.writeLock().unlock();
-		}
-	}
-
 	public void setFreeBlocksCount(long freeBlocksCount) {
 		this.freeBlocksCount = freeBlocksCount;
 	}
 
-	public void incrementFreeInodesCount(int amount) {
-		superBlockLock.writeLock().lock();
-		try {
-			freeInodesCount += amount;
-		} finally {
-			superBlockLock.writeLock().unlock();
-		}
-	}
-
 	public void setFreeInodesCount(long freeInodesCount) {
 		this.freeInodesCount = freeInodesCount;
 	}
 
-	public void incrementUsedDirsCount(int amount) {
-		superBlockLock.writeLock().lock();
-		try {
-			dirsCount += amount;
-		} finally {
-			superBlockLock.writeLock().unlock();
+	public void setUsedDirsCount(long dirsCount) {
+		this.dirsCount = dirsCount;
+	}
+
+	/*
+	 * Running totals of the block group counters. Allocation only changes
+	 * the counters of its group, which add the difference here. The on disk
+	 * fields are updated from the totals when the superblock is written.
+	 */
+	private LongAdder groupFreeBlocks = new LongAdder();
+	private LongAdder groupFreeInodes = new LongAdder();
+	private LongAdder groupUsedDirs = new LongAdder();
+	private volatile boolean groupTotals = false;
+
+	/** free blocks promised to data written in delayed allocation mode */
+	private AtomicLong delayedBlocks = new AtomicLong(0);
+
+	/**
+	 * Start the running totals from the group descriptors. Called when the
+	 * descriptors were read.
+	 */
+	void initGroupTotals() {
+		groupTotals = false;
+		groupFreeBlocks.reset();
+		groupFreeInodes.reset();
+		groupUsedDirs.reset();
+		for (BlockGroupDescriptor descr :
+			BlockGroupAccess.getInstance().iterateBlockGroups()) {
+			groupFreeBlocks.add(descr.getFreeBlocksCount());
+			groupFreeInodes.add(descr.getFreeInodesCount());
+			groupUsedDirs.add(descr.getUsedDirsCount());
 		}
+		groupTotals = true;
 	}
 
-	public void setUsedDirsCount(long dirsCount) {
-		this.dirsCount = dirsCount;
+	/**
+	 * Called by a block group descriptor when its counters change
+	 */
+	void addGroupCounters(long freeBlocks, long freeInodes, long usedDirs) {
+		if (freeBlocks != 0)
+			groupFreeBlocks.add(freeBlocks);
+		if (freeInodes != 0)
+			groupFreeInodes.add(freeInodes);
+		if (usedDirs != 0)
+			groupUsedDirs.add(usedDirs);
 	}
 
 	public int getAddressesPerBlock() {
@@ -279,7 +303,7 @@ public class Superblock extends Block {
 		this.lastMounted = lastMounted;
 	}
 	public boolean hasFreeBlocks() {
-		long freeBlocks = this.freeBlocksCount;
+		long freeBlocks = getFreeBlocksCount() - delayedBlocks.get();
 		long rootBlocks = this.reservedBlocksCount;
 
 		if (freeBlocks < rootBlocks + 1) {
@@ -290,6 +314,31 @@ public class Superblock extends Block {
 		return true;
 	}
 
+	/**
+	 * Reserve count free blocks for data written in delayed allocation mode.
+	 * The blocks are still counted as free but #hasFreeBlocks() does not hand
+	 * them out to other allocations.
+	 * @return false if there are not enough free blocks besides the blocks
+	 *         reserved for root
+	 */
+	boolean reserveDelayedBlocks(long count) {
+		while (true) {
+			long delayed = delayedBlocks.get();
+			if (getFreeBlocksCount() - delayed - count < this.reservedBlocksCount)
+				return false;
+			if (delayedBlocks.compareAndSet(delayed, delayed + count))
+				return true;
+		}
+	}
+
+	/**
+	 * Give back blocks reserved by #reserveDelayedBlocks(long), because they
+	 * were allocated or are not needed anymore
+	 */
+	void releaseDelayedBlocks(long count) {
+		delayedBlocks.addAndGet(-count);
+	}
+
 	@Override
 	protected void read(ByteBuffer buf) throws IoError {
 		this.inodesCount = Ext2fsDataTypes.getLE32U(buf, 0);
@@ -341,6 +390,12 @@ public class Superblock extends Block {
 
 	@Override
 	protected void write(ByteBuffer buf) throws IoError {
+		if (groupTotals) {
+			freeBlocksCount = groupFreeBlocks.sum();
+			freeInodesCount = groupFreeInodes.sum();
+			dirsCount = groupUsedDirs.sum();
+		}
+
 		Ext2fsDataTypes.putLE32U(buf, this.inodesCount, 0);
 		Ext2fsDataTypes.putLE32U(buf, this.blocksCount, 4);
 		Ext2fsDataTypes.putLE32U(buf, this.reservedBlocksCount, 8);
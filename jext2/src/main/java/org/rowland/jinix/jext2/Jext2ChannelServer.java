@@ -7,7 +7,6 @@ import org.rowland.jinix.naming.*;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
@@ -29,6 +28,8 @@ public class Jext2ChannelServer extends JinixKernelUnicastRemoteObject implement
     private boolean closed;
     private ReentrantLock positionOperationLock = new ReentrantLock(false);
     private int openCount;
+    private Jext2ReadAhead readAhead;
+    private Jext2WriteBuffer writeBuffer;
 
     Jext2ChannelServer(Jext2Translator translator, int pid, String pathName, long ino, Set<? extends OpenOption> options)
             throws NoSuchFileException, RemoteException {
@@ -47,6 +48,8 @@ public class Jext2ChannelServer extends JinixKernelUnicastRemoteObject implement
                 throw new NoSuchFileException("illegal attempt to open non-file");
             } else {
                 inode = (RegularInode) in;
+                readAhead = new Jext2ReadAhead(inode);
+                writeBuffer = new Jext2WriteBuffer(inode);
             }
 
         } catch (JExt2Exception e) {
@@ -66,12 +69,11 @@ public class Jext2ChannelServer extends JinixKernelUnicastRemoteObject implement
         }
         this.positionOperationLock.lock();
         try {
-            ByteBuffer buf = inode.readData(len, this.getPosition());
-            if (buf == null) { // EOF
+            writeBuffer.flush();
+            byte[] rtrn = readAhead.read(this.getPosition(), len);
+            if (rtrn == null) { // EOF
                 return null;
             }
-            byte[] rtrn = new byte[buf.limit()];
-            buf.get(rtrn);
             this.setPosition(this.getPosition() + rtrn.length);
             return rtrn;
         } catch (JExt2Exception e) {
@@ -90,10 +92,9 @@ public class Jext2ChannelServer extends JinixKernelUnicastRemoteObject implement
 
         this.positionOperationLock.lock();
         try {
-            int bw = inode.writeData(bytes, this.getPosition());
+            readAhead.invalidate();
+            int bw = writeBuffer.write(this.getPosition(), bytes);
             this.setPosition(this.getPosition() + bw);
-            inode.setModificationTime(new Date());
-            inode.sync();
             return bw;
         } catch (NoSpaceLeftOnDevice e) {
             throw new RemoteException("Not enough space");
@@ -113,6 +114,7 @@ public class Jext2ChannelServer extends JinixKernelUnicastRemoteObject implement
     public long skip(long l) throws RemoteException {
         this.positionOperationLock.lock();
         try {
+            flushWriteBuffer();
             this.setPosition(this.getPosition() + l);
             return l;
         } finally {
@@ -122,7 +124,7 @@ public class Jext2ChannelServer extends JinixKernelUnicastRemoteObject implement
 
     @Override
     public int available() throws RemoteException {
-        return (int) Math.min((long) Integer.MAX_VALUE, inode.getSize() - this.getPosition());
+        return (int) Math.min((long) Integer.MAX_VALUE, length() - this.getPosition());
     }
 
     @Override
@@ -132,17 +134,35 @@ public class Jext2ChannelServer extends JinixKernelUnicastRemoteObject implement
 
     @Override
     public void seek(long l) throws RemoteException {
-        this.setPosition(l);
+        this.positionOperationLock.lock();
+        try {
+            flushWriteBuffer();
+            this.setPosition(l);
+        } finally {
+            this.positionOperationLock.unlock();
+        }
     }
 
     @Override
     public long length() throws RemoteException {
-        return this.inode.getSize();
+        this.positionOperationLock.lock();
+        try {
+            return Math.max(this.inode.getSize(), writeBuffer.getEnd());
+        } finally {
+            this.positionOperationLock.unlock();
+        }
     }
 
     @Override
     public void setLength(long l) throws RemoteException {
+        this.positionOperationLock.lock();
+        try {
+            flushWriteBuffer();
+        } finally {
+            this.positionOperationLock.unlock();
+        }
         this.inode.setSize(l);
+        this.readAhead.invalidate();
     }
 
     @Override
@@ -152,23 +172,50 @@ public class Jext2ChannelServer extends JinixKernelUnicastRemoteObject implement
 
     @Override
     public void close() throws RemoteException {
+        if (openCount == 0) {
+            return;
+        }
+        if (openCount > 1) {
+            openCount--;
+            return;
+        }
+
+        // The last close only takes effect once the buffered writes are on disk, so a failed close
+        // can be retried.
+        this.positionOperationLock.lock();
         try {
-            if (openCount > 0) {
-                openCount--;
-                if (openCount == 0) {
-                    inode.sync();
-                    translator.inodes.forgetInode(this.inode.getIno(), 1);
-                    if (!unexport()) {
-                        Filesystem.getLogger().severe("FSCS unexport failed: "+this.toString());
-                    }
-                }
-            }
+            readAhead.invalidate();
+            writeBuffer.flush();
+            inode.flushDelayedData();
+            inode.sync();
         } catch (IoError ioError) {
             throw new RemoteException("IoError closing FileInputStream", ioError);
+        } catch (JExt2Exception e) {
+            throw new RemoteException("JExt2Exception flushing writes on close()", e);
+        } finally {
+            this.positionOperationLock.unlock();
+        }
+
+        openCount = 0;
+        try {
+            translator.inodes.forgetInode(this.inode.getIno(), 1);
         } finally {
-            if (openCount == 0) {
-                translator.removeFileSystemChannelServer(pid, this);
+            if (!unexport()) {
+                Filesystem.getLogger().severe("FSCS unexport failed: "+this.toString());
             }
+            translator.removeFileSystemChannelServer(pid, this);
+        }
+    }
+
+    private void flushWriteBuffer() throws RemoteException {
+        try {
+            writeBuffer.flush();
+        } catch (NoSpaceLeftOnDevice e) {
+            throw new RemoteException("Not enough space");
+        } catch (FileTooLarge e) {
+            throw new RemoteException("File too large");
+        } catch (JExt2Exception e) {
+            throw new RemoteException("JExt2Exception flushing writes", e);
         }
     }
 
@@ -182,7 +229,17 @@ public class Jext2ChannelServer extends JinixKernelUnicastRemoteObject implement
 
     @Override
     public void force(boolean b) throws RemoteException {
-        // TODO: implement force
+        this.positionOperationLock.lock();
+        try {
+            flushWriteBuffer();
+            inode.force();
+        } catch (IoError ioError) {
+            throw new RemoteException("IoError on force()", ioError);
+        } catch (JExt2Exception e) {
+            throw new RemoteException("JExt2Exception on force()", e);
+        } finally {
+            this.positionOperationLock.unlock();
+        }
     }
 
     public String getAbsolutePathName() throws RemoteException {
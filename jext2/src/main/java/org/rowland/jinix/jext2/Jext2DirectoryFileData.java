@@ -0,0 +1,11 @@
+package org.rowland.jinix.jext2;
+
+import org.rowland.jinix.naming.DirectoryFileData;
+
+/**
+ * DirectoryFileData of a directory entry as returned by Jext2FileNameSpace.listFileData().
+ */
+public class Jext2DirectoryFileData extends DirectoryFileData {
+
+    public long ino;
+}
@@ -0,0 +1,44 @@
+package org.rowland.jinix.jext2;
+
+import org.rowland.jinix.naming.FileNameSpace;
+
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.rmi.RemoteException;
+
+/**
+ * FileNameSpace extensions of the Jext2 translator.
+ */
+public interface Jext2FileNameSpace extends FileNameSpace {
+
+    /**
+     * List a directory together with the attributes of each entry. Saves a getFileAttributes() call per entry.
+     *
+     * @param pathName absolute path of the directory
+     * @return one element per directory entry, or null if pathName is not a directory
+     */
+    public Jext2DirectoryFileData[] listFileData(String pathName) throws RemoteException;
+
+    /**
+     * Open a cursor to list a directory in pages with fetchDirectoryPage(). The cursor does not lock the
+     * directory, entries added or removed while the cursor is open may or may not be returned.
+     *
+     * @param pathName absolute path of the directory
+     * @return cursor id
+     */
+    public long openDirectoryCursor(String pathName) throws NoSuchFileException, NotDirectoryException, RemoteException;
+
+    /**
+     * Fetch the next entry names of a directory cursor.
+     *
+     * @param cursor id returned by openDirectoryCursor()
+     * @param maxEntries maximum number of names returned
+     * @return up to maxEntries names, or null when the end of the directory has been reached
+     */
+    public String[] fetchDirectoryPage(long cursor, int maxEntries) throws RemoteException;
+
+    /**
+     * Release a directory cursor.
+     */
+    public void closeDirectoryCursor(long cursor) throws RemoteException;
+}
@@ -0,0 +1,193 @@
+package org.rowland.jinix.jext2;
+
+import jext2.RegularInode;
+import jext2.exceptions.JExt2Exception;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Sequential readahead for one open file. Reads that continue where the previous read ended grow the
+ * readahead window, any other read resets it. The next window is read by a background thread while the
+ * current one is consumed. Data is read without touching the access time, which is only updated when a
+ * read returns data. Not thread safe, the owning Jext2ChannelServer serializes access.
+ */
+class Jext2ReadAhead {
+
+    static final int MIN_WINDOW = 16 * 1024;
+    static final int MAX_WINDOW = 512 * 1024;
+
+    private static final ExecutorService prefetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Jext2ReadAhead");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private RegularInode inode;
+    private long nextPosition = 0;
+    private int window = 0;
+
+    private ByteBuffer current;
+    private long currentStart;
+    private Future<ByteBuffer> next;
+    private long nextStart;
+
+    /* file state the buffered data was read from */
+    private long modificationTime;
+    private long size;
+
+    Jext2ReadAhead(RegularInode inode) {
+        this.inode = inode;
+    }
+
+    /**
+     * Read up to len bytes at position.
+     *
+     * @return the bytes read or null at end of file
+     */
+    byte[] read(long position, int len) throws JExt2Exception {
+        if (inode.getModificationTime().getTime() != modificationTime || inode.getSize() != size) {
+            invalidate();
+        }
+
+        if (position == nextPosition) {
+            window = (window == 0) ? MIN_WINDOW : Math.min(window * 2, MAX_WINDOW);
+        } else {
+            window = 0;
+            invalidate();
+        }
+
+        byte[] rtrn = new byte[len];
+        int n = 0;
+        while (n < len) {
+            if (!contains(position + n) && !takeNext(position + n)) {
+                break;
+            }
+            ByteBuffer src = current.duplicate();
+            src.position((int) (position + n - currentStart));
+            int count = Math.min(len - n, src.remaining());
+            src.get(rtrn, n, count);
+            n += count;
+        }
+
+        if (n < len) {
+            ByteBuffer buf = inode.readDataAhead(len - n, position + n);
+            if (buf != null) {
+                int count = buf.remaining();
+                buf.get(rtrn, n, count);
+                n += count;
+            }
+        }
+
+        if (n == 0 && len > 0) { // EOF
+            return null;
+        }
+        if (n > 0) {
+            inode.updateAccessTime();
+        }
+
+        nextPosition = position + n;
+        prefetch();
+
+        return (n == len) ? rtrn : Arrays.copyOf(rtrn, n);
+    }
+
+    /**
+     * Drop all buffered data. Called when the file is written, truncated or closed. A running prefetch is
+     * waited for, so no read of the inode is left once the channel releases it.
+     */
+    void invalidate() {
+        current = null;
+        if (next != null) {
+            awaitNext();
+            next = null;
+        }
+        modificationTime = inode.getModificationTime().getTime();
+        size = inode.getSize();
+    }
+
+    /**
+     * Wait for the prefetch to finish and drop its result. Cancelling would not stop a prefetch that is
+     * running already.
+     */
+    private void awaitNext() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                next.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean contains(long position) {
+        return current != null && position >= currentStart && position < currentStart + current.limit();
+    }
+
+    /**
+     * Make the prefetched window the current one if it holds position.
+     */
+    private boolean takeNext(long position) throws JExt2Exception {
+        if (next == null) {
+            return false;
+        }
+
+        ByteBuffer buf;
+        try {
+            buf = next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            buf = null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof JExt2Exception) {
+                throw (JExt2Exception) e.getCause();
+            }
+            throw new RuntimeException("Readahead failed", e.getCause());
+        } finally {
+            next = null;
+        }
+
+        current = buf;
+        currentStart = nextStart;
+        return contains(position);
+    }
+
+    /**
+     * Start reading the window following the buffered data once less than half a window is left.
+     */
+    private void prefetch() {
+        if (window == 0 || next != null) {
+            return;
+        }
+
+        final long start = (current != null && contains(nextPosition)) ? currentStart + current.limit() : nextPosition;
+        if (start - nextPosition > window / 2 || start >= inode.getSize()) {
+            return;
+        }
+
+        final int length = window;
+        nextStart = start;
+        next = prefetcher.submit(new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws Exception {
+                return inode.readDataAhead(length, start);
+            }
+        });
+    }
+}
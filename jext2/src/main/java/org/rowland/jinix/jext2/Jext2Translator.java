@@ -4,6 +4,11 @@ import jext2.*;
 import jext2.exceptions.IoError;
 import jext2.exceptions.JExt2Exception;
 import jext2.exceptions.NoSuchFileOrDirectory;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 import org.rowland.jinix.JinixKernelUnicastRemoteObject;
 import org.rowland.jinix.RootFileSystem;
 import org.rowland.jinix.io.JinixFile;
@@ -23,13 +28,16 @@ import java.net.URISyntaxException;
 import java.nio.file.*;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A translator an ext2 file system.
  */
-public class Jext2Translator extends JinixKernelUnicastRemoteObject implements FileNameSpace, RootFileSystem {
+public class Jext2Translator extends JinixKernelUnicastRemoteObject implements Jext2FileNameSpace, RootFileSystem {
 
     private static long EMPTY_LOOKUP = -1;
     private static Jext2Translator translator;
@@ -45,16 +53,39 @@ public class Jext2Translator extends JinixKernelUnicastRemoteObject implements F
     private RemoteFileHandle rootFile;
     private String blockDevName;
 
+    /** directory cursors not used for this long are closed */
+    private static final long DIRECTORY_CURSOR_TIMEOUT = 10 * 60 * 1000;
+
+    private static class DirectoryCursor {
+        long ino;
+        long position = 0;
+        volatile long lastUsed = System.currentTimeMillis();
+        boolean closed = false;
+        /* held while a page is fetched and when the cursor is closed */
+        final ReentrantLock lock = new ReentrantLock();
+
+        DirectoryCursor(long ino) {
+            this.ino = ino;
+        }
+    }
+
+    private Map<Long, DirectoryCursor> directoryCursors = new ConcurrentHashMap<Long, DirectoryCursor>();
+    private AtomicLong nextDirectoryCursor = new AtomicLong(1);
+
     private Map<Integer, List<FileAccessorStatistics>> openFileMap = Collections.synchronizedMap(
             new HashMap<Integer, List<FileAccessorStatistics>>());
 
-    private Jext2Translator(java.nio.channels.FileChannel blockDev, String blockDevName, RemoteFileHandle translatorFile) throws RemoteException {
+    private Jext2Translator(java.nio.channels.FileChannel blockDev, String blockDevName, RemoteFileHandle translatorFile,
+                            boolean mapDevice) throws RemoteException {
         this.rootFile = translatorFile;
         this.blockDev = blockDev;
         this.blockDevName = blockDevName;
 
         try {
             blocks = new BlockAccess(blockDev);
+            if (mapDevice && !blocks.mapDevice()) {
+                Filesystem.getLogger().warning("Memory mapped mode not available for "+blockDevName);
+            }
             superblock = Superblock.fromBlockAccess(blocks);
             blocks.initialize(superblock);
 
@@ -64,9 +95,10 @@ public class Jext2Translator extends JinixKernelUnicastRemoteObject implements F
 
             blockGroups = BlockGroupAccess.getInstance();
             blockGroups.readDescriptors();
+            FreeBlockIndex.getInstance().build();
             inodes = InodeAccess.getInstance();
-        } catch (IoError ioError) {
-            ioError.printStackTrace();
+        } catch (JExt2Exception e) {
+            e.printStackTrace();
             return;
         }
 
@@ -102,12 +134,15 @@ public class Jext2Translator extends JinixKernelUnicastRemoteObject implements F
     @Override
     public void sync() {
         try {
+            inodes.flushDelayedData();
+            inodes.syncAccessTimes();
             superblock.sync();
             for (BlockGroupDescriptor descr :blockGroups.iterateBlockGroups()) {
                 descr.sync();
             }
-        } catch (IoError ioError) {
-            Filesystem.getLogger().log(Level.SEVERE, "IO Failure", ioError);
+            blocks.sync();
+        } catch (JExt2Exception e) {
+            Filesystem.getLogger().log(Level.SEVERE, "IO Failure", e);
         }
     }
 
@@ -184,25 +219,21 @@ public class Jext2Translator extends JinixKernelUnicastRemoteObject implements F
         }
 
         try {
-            DirectoryEntry entry = parentInode.lookup(localName);
+            long ino = parentInode.lookupIno(localName);
+
+            if (pathName == null) {
+                return ino;
+            }
 
+            Inode inode = inodes.openInode(ino);
             try {
-                if (pathName == null) {
-                    return entry.getIno();
+                if (inode.isDirectory()) {
+                    return lookupInternal((DirectoryInode) inode, pathName);
                 } else {
-                    if (entry.isDirectory()) {
-                        parentInode = (DirectoryInode) inodes.openInode(entry.getIno());
-                        try {
-                            return lookupInternal(parentInode, pathName);
-                        } finally {
-                            inodes.forgetInode(parentInode.getIno(), 1);
-                        }
-                    } else {
-                        return EMPTY_LOOKUP;
-                    }
+                    return EMPTY_LOOKUP;
                 }
             } finally {
-                parentInode.directoryEntries.release(entry);
+                inodes.forgetInode(ino, 1);
             }
         } catch (NoSuchFileOrDirectory e) {
             return EMPTY_LOOKUP;
@@ -243,11 +274,7 @@ public class Jext2Translator extends JinixKernelUnicastRemoteObject implements F
             try {
                 if (inode != null) {
                     DirectoryFileData dfd = new DirectoryFileData();
-                    dfd.length = inode.getSize();
-                    dfd.type = (inode.getFileType() == DirectoryEntry.FILETYPE_DIR ?
-                            DirectoryFileData.FileType.DIRECTORY :
-                            DirectoryFileData.FileType.FILE);
-                    dfd.lastModified = inode.getModificationTime().getTime();
+                    setAttributes(dfd, inode);
                     return dfd;
                 } else {
                     throw new NoSuchFileException(pathName);
@@ -260,6 +287,14 @@ public class Jext2Translator extends JinixKernelUnicastRemoteObject implements F
         }
     }
 
+    private static void setAttributes(DirectoryFileData dfd, Inode inode) {
+        dfd.length = inode.getSize();
+        dfd.type = (inode.getFileType() == DirectoryEntry.FILETYPE_DIR ?
+                DirectoryFileData.FileType.DIRECTORY :
+                DirectoryFileData.FileType.FILE);
+        dfd.lastModified = inode.getModificationTime().getTime();
+    }
+
     @Override
     public void setFileAttributes(String name, DirectoryFileData directoryFileData) throws NoSuchFileException, RemoteException {
 
@@ -305,6 +340,185 @@ public class Jext2Translator extends JinixKernelUnicastRemoteObject implements F
         }
     }
 
+    @Override
+    public Jext2DirectoryFileData[] listFileData(String pathName) throws RemoteException {
+        if (!pathName.isEmpty() && !pathName.startsWith("/")) {
+            throw new IllegalArgumentException("Lookup path must begin with slash: "+pathName);
+        }
+
+        // Remove any trailing '/' characters
+        while (pathName.endsWith("/")) {
+            pathName = pathName.substring(0,pathName.length()-1);
+        }
+
+        try {
+            long ino = lookupInternal(null, pathName);
+            if (ino == EMPTY_LOOKUP) {
+                return null;
+            }
+
+            Inode inode = inodes.openInode(ino);
+            try {
+                if (!(inode instanceof DirectoryInode)) {
+                    return null;
+                }
+                List<Jext2DirectoryFileData> dir = new ArrayList<Jext2DirectoryFileData>(20);
+                DirectoryInode directory = (DirectoryInode) inode;
+                directory.directoryLock().readLock().lock();
+                try {
+                    for (DirectoryEntry entry : directory.iterateDirectory()) {
+                        if (entry.isUnused()) {
+                            continue;
+                        }
+                        Jext2DirectoryFileData dfd = new Jext2DirectoryFileData();
+                        dfd.name = entry.getName();
+                        dfd.ino = entry.getIno();
+                        dir.add(dfd);
+                    }
+                } finally {
+                    directory.directoryLock().readLock().unlock();
+                }
+
+                Jext2DirectoryFileData[] rtrn = new Jext2DirectoryFileData[dir.size()];
+                dir.toArray(rtrn);
+
+                // Visit the inodes in inode number order so the inode table is read sequentially
+                Collections.sort(dir, new Comparator<Jext2DirectoryFileData>() {
+                    @Override
+                    public int compare(Jext2DirectoryFileData o1, Jext2DirectoryFileData o2) {
+                        return Long.compare(o1.ino, o2.ino);
+                    }
+                });
+                for (Jext2DirectoryFileData dfd : dir) {
+                    setAttributes(dfd, inodes.peekInode(dfd.ino));
+                }
+                return rtrn;
+            } finally {
+                inodes.forgetInode(inode.getIno(), 1);
+            }
+        } catch (JExt2Exception e) {
+            throw new RemoteException("JExt2Exception in listFileData()");
+        }
+    }
+
+    @Override
+    public long openDirectoryCursor(String pathName) throws NoSuchFileException, NotDirectoryException, RemoteException {
+        if (!pathName.isEmpty() && !pathName.startsWith("/")) {
+            throw new IllegalArgumentException("Lookup path must begin with slash: "+pathName);
+        }
+
+        // Remove any trailing '/' characters
+        while (pathName.endsWith("/")) {
+            pathName = pathName.substring(0,pathName.length()-1);
+        }
+
+        closeIdleDirectoryCursors();
+
+        try {
+            long ino = lookupInternal(null, pathName);
+            if (ino == EMPTY_LOOKUP) {
+                throw new NoSuchFileException(pathName);
+            }
+
+            // The inode stays open until the cursor is closed
+            Inode inode = inodes.openInode(ino);
+            if (!(inode instanceof DirectoryInode)) {
+                inodes.forgetInode(ino, 1);
+                throw new NotDirectoryException(pathName);
+            }
+
+            long cursor = nextDirectoryCursor.getAndIncrement();
+            directoryCursors.put(cursor, new DirectoryCursor(ino));
+            return cursor;
+        } catch (JExt2Exception e) {
+            throw new RemoteException("JExt2Exception in openDirectoryCursor()");
+        }
+    }
+
+    @Override
+    public String[] fetchDirectoryPage(long cursor, int maxEntries) throws RemoteException {
+        if (maxEntries <= 0) {
+            throw new RemoteException("Invalid maxEntries: "+maxEntries);
+        }
+
+        DirectoryCursor c = directoryCursors.get(cursor);
+        if (c == null) {
+            throw new RemoteException("Invalid directory cursor: "+cursor);
+        }
+
+        c.lock.lock();
+        try {
+            if (c.closed) {
+                throw new RemoteException("Invalid directory cursor: "+cursor);
+            }
+            if (c.position < 0) {
+                return null;
+            }
+
+            c.lastUsed = System.currentTimeMillis();
+            Inode inode = inodes.getOpened(c.ino);
+            if (inode == null) {
+                throw new RemoteException("Directory of cursor "+cursor+" is no longer open");
+            }
+            DirectoryInode directory = (DirectoryInode) inode;
+            List<String> names = new ArrayList<String>(maxEntries);
+            c.position = directory.readNames(c.position, maxEntries, names);
+            if (names.isEmpty()) {
+                return null;
+            }
+            String[] rtrn = new String[names.size()];
+            names.toArray(rtrn);
+            return rtrn;
+        } catch (JExt2Exception e) {
+            throw new RemoteException("JExt2Exception in fetchDirectoryPage()");
+        } finally {
+            c.lock.unlock();
+        }
+    }
+
+    @Override
+    public void closeDirectoryCursor(long cursor) throws RemoteException {
+        DirectoryCursor c = directoryCursors.remove(cursor);
+        if (c != null) {
+            c.lock.lock();
+            try {
+                closeCursor(c);
+            } finally {
+                c.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Close cursors that have not been used for DIRECTORY_CURSOR_TIMEOUT. Cursors with a fetch in progress are
+     * skipped.
+     */
+    private void closeIdleDirectoryCursors() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, DirectoryCursor> entry : directoryCursors.entrySet()) {
+            DirectoryCursor c = entry.getValue();
+            if (now - c.lastUsed <= DIRECTORY_CURSOR_TIMEOUT || !c.lock.tryLock()) {
+                continue;
+            }
+            try {
+                if (now - c.lastUsed > DIRECTORY_CURSOR_TIMEOUT &&
+                        directoryCursors.remove(entry.getKey(), c)) {
+                    closeCursor(c);
+                }
+            } finally {
+                c.lock.unlock();
+            }
+        }
+    }
+
+    /** Must hold the cursor's lock */
+    private void closeCursor(DirectoryCursor c) {
+        if (!c.closed) {
+            c.closed = true;
+            inodes.forgetInode(c.ino, 1);
+        }
+    }
+
     @Override
     public boolean createFileAtomically(String directoryName, String fileName) throws FileAlreadyExistsException, RemoteException {
 
@@ -519,6 +733,7 @@ public class Jext2Translator extends JinixKernelUnicastRemoteObject implements F
                             DirectoryEntry dotdot = newDir.lookup("..");
                             dotdot.setIno(newparentInode.getIno());
                             dotdot.sync();
+                            DentryCache.getInstance().remove(newDir.getIno(), "..");
 
                             newparentInode.setLinksCount(newparentInode.getLinksCount() + 1);
                             parentInode.setLinksCount(parentInode.getLinksCount() - 1);
@@ -716,6 +931,33 @@ public class Jext2Translator extends JinixKernelUnicastRemoteObject implements F
             return;
         }
 
+        Options cmdOptions = new Options();
+        cmdOptions.addOption("m", "mmap", false, "memory map the block device if it is a regular file");
+        cmdOptions.addOption("a", "atime", true, "access time update mode: strict, relatime, noatime or lazytime");
+        cmdOptions.addOption("d", "delalloc", false, "delay block allocation until buffered file data is written back");
+
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(cmdOptions, args);
+        } catch (ParseException e) {
+            System.err.println("Jext2Translator: "+e.getMessage());
+            new HelpFormatter().printHelp("Jext2Translator [options] [device]", cmdOptions);
+            return;
+        }
+        args = cmd.getArgs();
+        boolean mapDevice = cmd.hasOption("mmap");
+
+        AccessTimeMode accessTimeMode = AccessTimeMode.STRICT;
+        if (cmd.hasOption("atime")) {
+            try {
+                accessTimeMode = AccessTimeMode.fromString(cmd.getOptionValue("atime"));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Jext2Translator: invalid atime mode: "+cmd.getOptionValue("atime"));
+                new HelpFormatter().printHelp("Jext2Translator [options] [device]", cmdOptions);
+                return;
+            }
+        }
+
         String blockDevName = null;
         Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DSYNC);
         java.nio.channels.FileChannel blockDev = null;
@@ -730,6 +972,7 @@ public class Jext2Translator extends JinixKernelUnicastRemoteObject implements F
                 JinixFileInputStream jis = new JinixFileInputStream(translatorFile);
                 blockDev = JinixFileChannel.open(jis.getFD(), options, null);
                 blockDevName = JinixRuntime.getRuntime().getTranslatorNodePath();
+                mapDevice = false; // a Jinix file channel can not be mapped
             }
         }
         catch (IOException e) {
@@ -738,10 +981,12 @@ public class Jext2Translator extends JinixKernelUnicastRemoteObject implements F
 
         Filesystem.setLogger(Logger.getLogger("jext2"));
         Filesystem.setLogLevel("FINEST");
+        Filesystem.setAccessTimeMode(accessTimeMode);
+        Filesystem.setDelayedAllocation(cmd.hasOption("delalloc"));
 
         try {
             RemoteFileHandle translatorFileRemoteFileHandle = (RemoteFileHandle) (new JinixContext()).lookup(translatorFile.getAbsolutePath());
-            translator = new Jext2Translator(blockDev, blockDevName, translatorFileRemoteFileHandle);
+            translator = new Jext2Translator(blockDev, blockDevName, translatorFileRemoteFileHandle, mapDevice);
             JinixRuntime.getRuntime().bindTranslator(translator);
         } catch (RemoteException e) {
             throw new RuntimeException("Internal error", e);
@@ -0,0 +1,93 @@
+package org.rowland.jinix.jext2;
+
+import jext2.RegularInode;
+import jext2.Superblock;
+import jext2.exceptions.JExt2Exception;
+
+import java.util.Arrays;
+
+/**
+ * Write-behind buffer for one open file. Small writes that continue the buffered data are collected and
+ * written to the inode in block aligned chunks once THRESHOLD bytes are buffered. Any other write, and
+ * seek, read, force and close, flush the buffer first. Not thread safe, the owning Jext2ChannelServer
+ * serializes access.
+ */
+class Jext2WriteBuffer {
+
+    static final int THRESHOLD = 64 * 1024;
+
+    private RegularInode inode;
+    private byte[] data = new byte[THRESHOLD];
+    private long start;
+    private int length = 0;
+
+    Jext2WriteBuffer(RegularInode inode) {
+        this.inode = inode;
+    }
+
+    /**
+     * Write bytes at position, buffering them if they are small.
+     *
+     * @return number of bytes accepted
+     */
+    int write(long position, byte[] bytes) throws JExt2Exception {
+        if (length > 0 && position != start + length) {
+            flush();
+        }
+
+        if (length == 0 && bytes.length >= THRESHOLD) {
+            return inode.writeData(bytes, position);
+        }
+
+        if (length == 0) {
+            start = position;
+        }
+
+        int n = 0;
+        while (n < bytes.length) {
+            int count = Math.min(bytes.length - n, data.length - length);
+            System.arraycopy(bytes, n, data, length, count);
+            length += count;
+            n += count;
+
+            if (length == data.length) {
+                flushAligned();
+            }
+        }
+        return bytes.length;
+    }
+
+    /**
+     * Write all buffered data to the inode
+     */
+    void flush() throws JExt2Exception {
+        if (length > 0) {
+            inode.writeData(Arrays.copyOf(data, length), start);
+            length = 0;
+        }
+    }
+
+    /**
+     * End of the buffered data or -1 if nothing is buffered
+     */
+    long getEnd() {
+        return (length > 0) ? start + length : -1;
+    }
+
+    /**
+     * Write the buffered data up to the last block boundary and keep the rest
+     */
+    private void flushAligned() throws JExt2Exception {
+        int blocksize = Superblock.getInstance().getBlocksize();
+        int aligned = (int) ((start + length) / blocksize * blocksize - start);
+        if (aligned <= 0) {
+            flush();
+            return;
+        }
+
+        inode.writeData(Arrays.copyOf(data, aligned), start);
+        System.arraycopy(data, aligned, data, 0, length - aligned);
+        start += aligned;
+        length -= aligned;
+    }
+}
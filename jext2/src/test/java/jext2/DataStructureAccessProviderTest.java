@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2011 Marcel Lauhoff.
+ *
+ * This file is part of jext2.
+ *
+ * jext2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * jext2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jext2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jext2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataStructureAccessProviderTest {
+	/**
+	 * Provider that keeps released values for reuse the way InodeAccess
+	 * keeps released inodes
+	 */
+	static class CachingProvider extends DataStructureAccessProvider<Long, Object> {
+		final Map<Long, Object> releasedValues = new HashMap<Long, Object>();
+		final AtomicInteger created = new AtomicInteger();
+		final AtomicInteger notInTable = new AtomicInteger();
+
+		CachingProvider() {
+			super(16);
+		}
+
+		@Override
+		protected Object createInstance(Long key) {
+			synchronized (releasedValues) {
+				Object value = releasedValues.remove(key);
+				if (value != null)
+					return value;
+			}
+			created.incrementAndGet();
+			return new Object();
+		}
+
+		@Override
+		protected void releasing(Long key, Object value) {
+			if (get(key) != value)
+				notInTable.incrementAndGet();
+		}
+
+		@Override
+		protected void released(Long key, Object value) {
+			Thread.yield(); /* widen the window between table and cache */
+			synchronized (releasedValues) {
+				releasedValues.put(key, value);
+			}
+		}
+	}
+
+	@Before
+	public void setUp() {
+		Filesystem.setLogger(Logger.getLogger("jext2"));
+	}
+
+	@Test
+	public void concurrentOpenAndReleaseShareOneInstance() throws Exception {
+		final CachingProvider provider = new CachingProvider();
+		final Object first = provider.open(1L);
+		provider.release(1L);
+
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i=0; i<20000; i++) {
+							if (provider.open(1L) != first)
+								errors.incrementAndGet();
+							provider.release(1L);
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+
+		assertEquals("opens that got a second instance", 0, errors.get());
+		assertEquals(1, provider.created.get());
+		assertEquals("releasing() calls after the entry left the table", 0, provider.notInTable.get());
+	}
+
+	@Test
+	public void releasedEntryIsReused() throws Exception {
+		CachingProvider provider = new CachingProvider();
+		Object value = provider.open(7L);
+		provider.open(7L);
+		provider.release(7L, 2);
+
+		assertSame(value, provider.open(7L));
+		assertEquals(1, provider.created.get());
+	}
+}